@@ -0,0 +1,99 @@
+package highlighter;
+
+import jdk.incubator.vector.ShortVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * CharScanner backend using the Vector API: loads SPECIES.length() chars at a time (16 with AVX2, 32 with AVX-512)
+ * and tests them against each range of trigger chars (see CharScanner.ranges) with a subtract and an unsigned
+ * compare, ie. c is in [first, last] iff (c - first) <= (last - first) unsigned. The ranges are few even for large
+ * sets: the ascii word chars are 5 ranges.
+ *
+ * The first vector's worth of chars of each search, and the tail of the input that doesn't fill a vector, are tested
+ * one char at a time with a lookup table. Vectors can't be loaded from a String, so the rest is copied into a char[]
+ * window WINDOW_SIZE chars at a time; searches move forward through an input, so each part of it is usually copied
+ * at most once per scanner.
+ *
+ * This class needs the jdk.incubator.vector module, so it's compiled separately from the rest of the sources:
+ *    javac --add-modules jdk.incubator.vector -cp <classes> -d <classes> src-vector/highlighter/*.java
+ * and CharScanner.create only uses it when running with --add-modules jdk.incubator.vector.
+ */
+public class VectorCharScanner extends CharScanner {
+    static final VectorSpecies<Short> SPECIES = ShortVector.SPECIES_PREFERRED;
+    static final int WINDOW_SIZE = 4096;    // chars copied from the input at a time (must be >= SPECIES.length())
+
+    private final String chars;
+    private final boolean nonAscii;
+    private final short[] firsts;   // the trigger ranges: first char, and last - first
+    private final short[] spans;
+    private final boolean[] table = new boolean[128];  // for the chars tested one at a time
+    private String input = null;
+    private final char[] window = new char[WINDOW_SIZE];   // input[windowStart, windowEnd)
+    private int windowStart = 0;
+    private int windowEnd = 0;
+
+    public VectorCharScanner (String chars, boolean nonAscii) {
+        this.chars = chars;
+        this.nonAscii = nonAscii;
+        int[] ranges = CharScanner.ranges(chars, nonAscii);
+        firsts = new short[ranges.length / 2];
+        spans = new short[ranges.length / 2];
+        for (int k = 0; k < firsts.length; ++k) {
+            firsts[k] = (short)ranges[2 * k];
+            spans[k] = (short)(ranges[2 * k + 1] - ranges[2 * k]);
+        }
+        for (int i = 0; i < chars.length(); ++i)
+            table[chars.charAt(i)] = true;
+    }
+
+    @Override
+    public int next (String s, int from) {
+        final int n = s.length();
+        final int step = SPECIES.length();
+        // the next trigger is often only a few chars away (eg. the end of an identifier), so test one vector's worth of
+        // chars one at a time before copying any
+        for (int end = Math.min(n, from + step); from < end; ++from) {
+            char c = s.charAt(from);
+            if (c < 128 ? table[c] : nonAscii)
+                return from;
+        }
+        if (s != input) {
+            input = s;
+            windowStart = windowEnd = 0;
+        }
+        final char[] window = this.window;
+        while (from <= n - step && firsts.length > 0) {
+            if (from < windowStart || from + step > windowEnd) {
+                windowStart = from;
+                windowEnd = Math.min(n, from + WINDOW_SIZE);
+                s.getChars(windowStart, windowEnd, window, 0);
+            }
+            for (; from <= windowEnd - step; from += step) {
+                ShortVector v = ShortVector.fromCharArray(SPECIES, window, from - windowStart);
+                VectorMask<Short> found = v.sub(firsts[0]).compare(VectorOperators.UNSIGNED_LE, spans[0]);
+                for (int k = 1; k < firsts.length; ++k)
+                    found = found.or(v.sub(firsts[k]).compare(VectorOperators.UNSIGNED_LE, spans[k]));
+                if (found.anyTrue())
+                    return from + found.firstTrue();
+            }
+        }
+        for (; from < n; ++from) {
+            char c = s.charAt(from);
+            if (c < 128 ? table[c] : nonAscii)
+                return from;
+        }
+        return n;
+    }
+
+    @Override
+    public void reset () {
+        input = null;
+    }
+
+    @Override
+    public CharScanner copy () {
+        return new VectorCharScanner(chars, nonAscii);
+    }
+}
@@ -0,0 +1,109 @@
+package highlighter;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * Per-phase allocation counters for one thread, used by ThreadStats and TimedStats when allocation tracking is on
+ * (Htmlify --track-allocations).
+ *
+ * Each begin / end pair reads the thread's allocated-bytes counter (com.sun.management.ThreadMXBean), so the bytes
+ * recorded for a phase are everything the thread allocated in it, including nested phases (eg. parse includes trie
+ * match). The counter's own allocations (if any) are measured once and subtracted, so a phase that allocates nothing
+ * reports 0. If the jvm doesn't support per-thread counters, nothing is recorded.
+ *
+ * Not thread-safe: an instance must only be used by the thread that owns its Stats.
+ */
+public class AllocationStats {
+    public static final int TRIE_MATCH = 0;
+    public static final int PARSE = 1;
+    public static final int HTML_GEN = 2;
+    public static final int FILE_READ = 3;
+    public static final int FILE_WRITE = 4;
+    static final int NUM_PHASES = 5;
+    static final String[] PHASE_NAMES = { "trie match", "parse", "html gen", "file read", "file write" };
+
+    private static final com.sun.management.ThreadMXBean threadBean = initThreadBean();
+    private static final long OVERHEAD = measureOverhead();     // bytes allocated by one begin / end pair
+
+    private final long[] start = new long[NUM_PHASES];
+    private final long[] bytes = new long[NUM_PHASES];
+    private final int[] calls = new int[NUM_PHASES];
+    private int files = 0;
+    private long sourceBytes = 0;
+
+    private static com.sun.management.ThreadMXBean initThreadBean () {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean))
+            return null;
+        com.sun.management.ThreadMXBean sunBean = (com.sun.management.ThreadMXBean)bean;
+        if (!sunBean.isThreadAllocatedMemorySupported())
+            return null;
+        sunBean.setThreadAllocatedMemoryEnabled(true);
+        return sunBean;
+    }
+
+    private static long measureOverhead () {
+        if (threadBean == null)
+            return 0;
+        long min = Long.MAX_VALUE;
+        for (int i = 0; i < 1000; ++i) {
+            long a = allocatedBytes();
+            long b = allocatedBytes();
+            min = Math.min(min, b - a);
+        }
+        return min;
+    }
+
+    public static boolean isSupported () {
+        return threadBean != null;
+    }
+
+    // Returns the number of bytes allocated by the current thread so far (0 if unsupported)
+    public static long allocatedBytes () {
+        return threadBean != null ? threadBean.getThreadAllocatedBytes(Thread.currentThread().getId()) : 0;
+    }
+
+    public void begin (int phase) {
+        start[phase] = allocatedBytes();
+    }
+
+    public void end (int phase) {
+        bytes[phase] += Math.max(allocatedBytes() - start[phase] - OVERHEAD, 0);
+        ++calls[phase];
+    }
+
+    // Records a source file that was read (for the per-file / per-byte figures)
+    public void recordFile (long sourceBytes) {
+        ++files;
+        this.sourceBytes += sourceBytes;
+    }
+
+    // Adds another thread's counts to this one (for totals across threads)
+    public void add (AllocationStats other) {
+        for (int i = 0; i < NUM_PHASES; ++i) {
+            bytes[i] += other.bytes[i];
+            calls[i] += other.calls[i];
+        }
+        files += other.files;
+        sourceBytes += other.sourceBytes;
+    }
+
+    public long getBytes (int phase) {
+        return bytes[phase];
+    }
+
+    public String getStats () {
+        if (!isSupported())
+            return "Allocations: not supported by this jvm";
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("Allocations (%d files, %d source bytes):", files, sourceBytes));
+        for (int i = 0; i < NUM_PHASES; ++i) {
+            if (calls[i] == 0)
+                continue;
+            sb.append(String.format("\n    %-11s %14d bytes in %d calls, %.1f bytes / file, %.3f bytes / source byte",
+                    PHASE_NAMES[i] + ":", bytes[i], calls[i], files > 0 ? (double)bytes[i] / files : 0.0,
+                    sourceBytes > 0 ? (double)bytes[i] / sourceBytes : 0.0));
+        }
+        return sb.toString();
+    }
+}
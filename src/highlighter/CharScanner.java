@@ -0,0 +1,178 @@
+package highlighter;
+
+import java.lang.reflect.Constructor;
+import java.util.Arrays;
+
+/**
+ * Finds the next occurrence of any of a fixed set of "trigger" chars in a string.
+ *
+ * Parser uses these to jump straight to the next char that can change its state (eg. the next quote or backslash
+ * inside a string literal) instead of stepping through the input one char at a time. The trigger sets are derived
+ * from the matcher rules (see Parser.triggerChars).
+ *
+ * There are three implementations (see create):
+ *    INDEX_OF  for small ascii sets: one String.indexOf(char) search per trigger char (which HotSpot compiles to SIMD
+ *              compare + mask code), each of whose results is reused until the search passes it. On source code,
+ *              where triggers are a few chars apart, this beats the other two on the sets it handles.
+ *    VECTOR    VectorCharScanner, for larger sets and sets with non-ascii chars: compares 16-32 chars per step against
+ *              each range of trigger chars, using the jdk.incubator.vector API. It's compiled separately (from
+ *              src-vector) and loaded reflectively, so it's only used if its class is on the classpath and the JVM was
+ *              started with --add-modules jdk.incubator.vector.
+ *    SCALAR    lookup table, one char at a time. Used for anything the other two don't handle (or aren't enabled for).
+ * All of them return exactly the same results.
+ */
+public abstract class CharScanner {
+    // Backends (see create). Each one enables the ones before it.
+    public static final int SCALAR = 0;
+    public static final int INDEX_OF = 1;
+    public static final int VECTOR = 2;
+
+    static final String VECTOR_SCANNER_CLASS = "highlighter.VectorCharScanner";
+    static final int MAX_VECTOR_RANGES = 12;    // (each range costs a subtract and a compare per vector)
+
+    // VectorCharScanner's (String chars, boolean nonAscii) constructor, or null if it's not available
+    private static final Constructor<?> vectorScanner = findVectorScanner();
+
+    private static Constructor<?> findVectorScanner () {
+        try {
+            Class.forName("jdk.incubator.vector.ShortVector");
+            return Class.forName(VECTOR_SCANNER_CLASS).getConstructor(String.class, boolean.class);
+        } catch (ReflectiveOperationException | LinkageError e) {
+            return null;    // (the module or the backend class is missing)
+        }
+    }
+
+    // Returns true if the VECTOR backend can be used
+    public static boolean isVectorAvailable () {
+        return vectorScanner != null;
+    }
+
+    // Returns the index of the first trigger char in s[from, s.length()), or s.length() if there isn't one
+    public abstract int next (String s, int from);
+
+    // Releases any per-input state (call once done with an input string)
+    public void reset () {}
+
+    // Returns a new scanner for the same set of chars. Scanners may cache per-input state, so each thread / parser
+    // needs its own instance.
+    public abstract CharScanner copy ();
+
+    // Creates a scanner for the given (ascii) chars, using the best of the backends up to the given one that can
+    // handle them. If nonAscii is set, every non-ascii char is also a trigger.
+    public static CharScanner create (String chars, boolean nonAscii, int backend) {
+        if (backend >= INDEX_OF && !nonAscii && chars.length() <= IndexOf.MAX_CHARS)
+            return new IndexOf(chars);
+        if (backend >= VECTOR && vectorScanner != null && ranges(chars, nonAscii).length <= 2 * MAX_VECTOR_RANGES) {
+            try {
+                return (CharScanner)vectorScanner.newInstance(chars, nonAscii);
+            } catch (ReflectiveOperationException | LinkageError e) {
+                e.printStackTrace();
+            }
+        }
+        return new Scalar(chars, nonAscii);
+    }
+
+    // Returns the trigger chars as ranges of consecutive chars: { first, last, first, last, ... }, in order. If
+    // nonAscii is set, the last range ends at 0xffff.
+    static int[] ranges (String chars, boolean nonAscii) {
+        boolean[] set = new boolean[129];
+        for (int i = 0; i < chars.length(); ++i)
+            set[chars.charAt(i)] = true;
+        set[128] = nonAscii;
+        int[] ranges = new int[2 * 129];
+        int count = 0;
+        for (int c = 0; c < set.length; ++c) {
+            if (!set[c])
+                continue;
+            if (count > 0 && ranges[count - 1] == c - 1) {
+                ranges[count - 1] = c;
+            } else {
+                ranges[count++] = c;
+                ranges[count++] = c;
+            }
+        }
+        if (nonAscii)
+            ranges[count - 1] = Character.MAX_VALUE;
+        return Arrays.copyOf(ranges, count);
+    }
+
+    static class Scalar extends CharScanner {
+        private final String chars;
+        private final boolean[] table = new boolean[128];
+        private final boolean nonAscii;
+
+        Scalar (String chars, boolean nonAscii) {
+            this.chars = chars;
+            this.nonAscii = nonAscii;
+            for (int i = 0; i < chars.length(); ++i)
+                table[chars.charAt(i)] = true;
+        }
+
+        @Override
+        public int next (String s, int from) {
+            final int n = s.length();
+            for (; from < n; ++from) {
+                char c = s.charAt(from);
+                if (c < 128 ? table[c] : nonAscii)
+                    return from;
+            }
+            return n;
+        }
+
+        @Override
+        public CharScanner copy () {
+            return new Scalar(chars, nonAscii);
+        }
+    }
+
+    // Runs String.indexOf once per trigger char, and caches the position it found: the cached result stays valid for
+    // any later search starting between where that search started and the position found, so each char's occurrences
+    // only get scanned once per input (as long as searches move forward, which they do while parsing).
+    static class IndexOf extends CharScanner {
+        static final int MAX_CHARS = 4;
+
+        private final String chars;
+        private final int[] cachedFrom;
+        private final int[] cachedPos;
+        private String input = null;
+
+        IndexOf (String chars) {
+            this.chars = chars;
+            this.cachedFrom = new int[chars.length()];
+            this.cachedPos = new int[chars.length()];
+        }
+
+        @Override
+        public int next (String s, int from) {
+            final int n = s.length();
+            if (s != input) {
+                input = s;
+                Arrays.fill(cachedFrom, Integer.MAX_VALUE);
+            }
+            int best = n;
+            for (int k = 0; k < cachedPos.length; ++k) {
+                int pos = cachedPos[k];
+                if (from < cachedFrom[k] || from > pos) {
+                    pos = s.indexOf(chars.charAt(k), from);
+                    if (pos < 0)
+                        pos = n;
+                    cachedFrom[k] = from;
+                    cachedPos[k] = pos;
+                }
+                if (pos < best)
+                    best = pos;
+            }
+            return best;
+        }
+
+        @Override
+        public void reset () {
+            input = null;
+        }
+
+        @Override
+        public CharScanner copy () {
+            return new IndexOf(chars);
+        }
+    }
+}
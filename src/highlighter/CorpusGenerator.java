@@ -0,0 +1,306 @@
+package highlighter;
+
+import java.io.*;
+import java.util.Random;
+
+/**
+ * Generates a deterministic corpus of java-like source files for benchmarking (see ThroughputGate), so that results can
+ * be shared and reproduced without the sources they'd otherwise be measured on.
+ *
+ * The mix of tokens is controlled by the public fields: comment density, string / numeric literal density (including
+ * hex and float literals with exponents), keyword frequency, line length and file size. A fraction of files are
+ * pathological: an unterminated comment or string running to the end of the file, a single huge line, a huge
+ * identifier or number, or a long run of escapes. File #i depends only on the seed, the settings and i.
+ *
+ * usage: CorpusGenerator [<options>] <output dir> <files>
+ */
+public class CorpusGenerator {
+    public long seed = 1;
+    public double commentDensity = 0.15;    // fraction of lines that are (or start) comments
+    public double stringDensity = 0.05;     // probability that a token is a string / char literal
+    public double numberDensity = 0.08;     // probability that a token is a numeric literal
+    public double keywordFrequency = 0.2;   // probability that a token is a keyword
+    public int lineLength = 60;             // average line length (lines vary from half to 1.5x this)
+    public int minFileSize = 1 << 10;       // file sizes are uniformly distributed in [min, max] chars
+    public int maxFileSize = 32 << 10;
+    public double pathologicalRate = 0.02;  // fraction of files that are pathological
+
+    static final String[] KEYWORDS = {
+        "abstract", "assert", "boolean", "break", "byte", "case", "catch", "char", "class", "const", "continue",
+        "default", "do", "double", "else", "enum", "extends", "final", "finally", "float", "for", "goto", "if",
+        "implements", "import", "instanceof", "int", "interface", "long", "native", "new", "package", "private",
+        "protected", "public", "return", "short", "static", "strictfp", "super", "switch", "synchronized", "this",
+        "throw", "throws", "transient", "try", "void", "volatile", "while", "true", "false", "null"
+    };
+    static final String[] OPERATORS = {
+        "=", "==", "!=", "+", "-", "*", "/", "%", "<", ">", "<=", ">=", "&&", "||", "!", "&", "|", "^", "~", "<<", ">>",
+        ">>>", "+=", "-=", "++", "--", "?", ":", ".", ",", ";", "(", ")", "[", "]", "{", "}", "->", "::", "@"
+    };
+    static final String[] WORDS = {
+        "the", "value", "of", "index", "buffer", "returns", "if", "null", "when", "count", "is", "a", "to", "and",
+        "tokens", "input", "state", "see", "for", "each", "TODO", "<b>", "&amp;", "{@link", "}"
+    };
+    static final int PATHOLOGICAL_KINDS = 6;
+
+    // Returns the contents of file #index
+    public String generate (int index) {
+        Random random = new Random(seed * 1000003L + index);
+        int size = minFileSize + (maxFileSize > minFileSize ? random.nextInt(maxFileSize - minFileSize + 1) : 0);
+        StringBuilder sb = new StringBuilder(size + lineLength * 2);
+        sb.append("package gen.p").append(index % 16).append(";\n\n");
+        sb.append("import java.util.List;\n\n");
+        sb.append("public class Gen").append(index).append(" {\n");
+
+        int pathological = random.nextDouble() < pathologicalRate ? random.nextInt(PATHOLOGICAL_KINDS) : -1;
+        int body = pathological >= 0 ? size / 2 : size - 2;
+        while (sb.length() < body)
+            appendLine(random, sb);
+
+        switch (pathological) {
+            case 0:     // unterminated block comment running to eof
+                sb.append("    /* never closed");
+                while (sb.length() < size) {
+                    appendWord(random, sb);
+                    if (random.nextInt(10) == 0)
+                        sb.append('\n');
+                }
+                return sb.toString();
+            case 1:     // unterminated string running to eof
+                sb.append("    String s = \"never closed ");
+                while (sb.length() < size)
+                    appendWord(random, sb);
+                return sb.toString();
+            case 2:     // one huge line
+                sb.append("    int[] xs = { ");
+                while (sb.length() < size) {
+                    appendNumber(random, sb);
+                    sb.append(", ");
+                }
+                sb.append("};\n");
+                break;
+            case 3:     // huge identifier
+                sb.append("    int ");
+                while (sb.length() < size)
+                    sb.append((char)('a' + random.nextInt(26)));
+                sb.append(" = 0;\n");
+                break;
+            case 4:     // huge numeric literal
+                sb.append("    long x = 0x");
+                while (sb.length() < size)
+                    sb.append("0123456789abcdef".charAt(random.nextInt(16)));
+                sb.append("L;\n");
+                break;
+            case 5:     // long run of escapes
+                sb.append("    String s = \"");
+                while (sb.length() < size)
+                    sb.append(random.nextBoolean() ? "\\\\" : "\\\"");
+                sb.append("\";\n");
+                break;
+            default:
+                break;
+        }
+        sb.append("}\n");
+        return sb.toString();
+    }
+
+    private void appendLine (Random random, StringBuilder sb) {
+        int length = lineLength / 2 + random.nextInt(lineLength + 1);
+        int start = sb.length();
+        sb.append("    ");
+        if (random.nextDouble() < commentDensity) {
+            switch (random.nextInt(3)) {
+                case 0:
+                    sb.append("// ");
+                    while (sb.length() - start < length)
+                        appendWord(random, sb);
+                    break;
+                case 1:
+                    sb.append("/* ");
+                    while (sb.length() - start < length)
+                        appendWord(random, sb);
+                    sb.append("*/");
+                    break;
+                default:    // multi-line javadoc
+                    sb.append("/**\n");
+                    for (int lines = 1 + random.nextInt(4); lines > 0; --lines) {
+                        int lineStart = sb.length();
+                        sb.append("     * ");
+                        while (sb.length() - lineStart < length)
+                            appendWord(random, sb);
+                        sb.append('\n');
+                    }
+                    sb.append("     */");
+                    break;
+            }
+        } else {
+            while (sb.length() - start < length) {
+                appendToken(random, sb);
+                sb.append(random.nextInt(4) == 0 ? "" : " ");
+            }
+        }
+        sb.append('\n');
+    }
+
+    private void appendToken (Random random, StringBuilder sb) {
+        double r = random.nextDouble();
+        if ((r -= keywordFrequency) < 0) {
+            sb.append(KEYWORDS[random.nextInt(KEYWORDS.length)]);
+        } else if ((r -= stringDensity) < 0) {
+            appendString(random, sb);
+        } else if ((r -= numberDensity) < 0) {
+            appendNumber(random, sb);
+        } else if (random.nextBoolean()) {
+            appendIdentifier(random, sb);
+        } else {
+            sb.append(OPERATORS[random.nextInt(OPERATORS.length)]);
+        }
+    }
+
+    private static void appendWord (Random random, StringBuilder sb) {
+        sb.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+    }
+
+    private static void appendIdentifier (Random random, StringBuilder sb) {
+        int length = 1 + random.nextInt(12);
+        sb.append((char)((random.nextInt(4) == 0 ? 'A' : 'a') + random.nextInt(26)));
+        for (int i = 1; i < length; ++i) {
+            int c = random.nextInt(40);
+            sb.append(c < 26 ? (char)('a' + c) : c < 36 ? (char)('0' + c - 26) : c < 38 ? '_' : (char)('A' + c - 38));
+        }
+    }
+
+    private static void appendString (Random random, StringBuilder sb) {
+        if (random.nextInt(4) == 0) {
+            String[] chars = { "'a'", "'\\n'", "'\\''", "'\\\\'", "'\"'", "'\\u0041'" };
+            sb.append(chars[random.nextInt(chars.length)]);
+            return;
+        }
+        sb.append('"');
+        for (int length = random.nextInt(24); length > 0; --length) {
+            int c = random.nextInt(32);
+            if (c == 0)
+                sb.append("\\\"");
+            else if (c == 1)
+                sb.append("\\\\");
+            else if (c == 2)
+                sb.append("\\n");
+            else if (c == 3)
+                sb.append("<&>");
+            else
+                sb.append((char)(c < 6 ? ' ' : 'a' + c - 6));
+        }
+        sb.append('"');
+    }
+
+    private static void appendNumber (Random random, StringBuilder sb) {
+        switch (random.nextInt(6)) {
+            case 0:
+                sb.append(random.nextInt(1000));
+                break;
+            case 1:
+                sb.append("0x").append(Integer.toHexString(random.nextInt()));
+                break;
+            case 2:
+                sb.append(random.nextInt(100000)).append('L');
+                break;
+            case 3:
+                sb.append(random.nextInt(100)).append('.').append(random.nextInt(1000))
+                        .append(random.nextBoolean() ? "e" : "E").append(random.nextBoolean() ? "-" : "")
+                        .append(random.nextInt(40));
+                break;
+            case 4:
+                sb.append(random.nextInt(10)).append('.').append(random.nextInt(100)).append(random.nextBoolean() ? 'f' : 'd');
+                break;
+            default:
+                sb.append("0x").append(Long.toHexString(random.nextLong())).append('L');
+                break;
+        }
+    }
+
+    // Writes files #0 .. #count-1 to dir (as gen/p<n>/Gen<i>.java), and returns their total size in chars
+    public long writeCorpus (File dir, int count) throws IOException {
+        long total = 0;
+        for (int i = 0; i < count; ++i) {
+            File packageDir = new File(dir, "gen" + File.separator + "p" + (i % 16));
+            if (!packageDir.exists() && !packageDir.mkdirs())
+                throw new IOException("can't create " + packageDir);
+            String source = generate(i);
+            try (Writer out = new FileWriter(new File(packageDir, "Gen" + i + ".java"))) {
+                out.write(source);
+            }
+            total += source.length();
+        }
+        return total;
+    }
+
+    // Parses a generator option (--seed=, --comments=, --strings=, --numbers=, --keywords=, --line-length=,
+    // --min-size=, --max-size=, --pathological=). Returns false if arg isn't one.
+    public boolean parseOption (String arg) {
+        int eq = arg.indexOf('=');
+        if (!arg.startsWith("--") || eq < 0)
+            return false;
+        String name = arg.substring(2, eq), value = arg.substring(eq + 1);
+        try {
+            switch (name) {
+                case "seed":            seed = Long.parseLong(value); break;
+                case "comments":        commentDensity = Double.parseDouble(value); break;
+                case "strings":         stringDensity = Double.parseDouble(value); break;
+                case "numbers":         numberDensity = Double.parseDouble(value); break;
+                case "keywords":        keywordFrequency = Double.parseDouble(value); break;
+                case "line-length":     lineLength = Math.max(1, Integer.parseInt(value)); break;
+                case "min-size":        minFileSize = Math.max(0, Integer.parseInt(value)); break;
+                case "max-size":        maxFileSize = Math.max(0, Integer.parseInt(value)); break;
+                case "pathological":    pathologicalRate = Double.parseDouble(value); break;
+                default:                return false;
+            }
+        } catch (NumberFormatException e) {
+            System.err.printf("invalid value for '%s'\n", arg);
+            System.exit(-1);
+        }
+        maxFileSize = Math.max(maxFileSize, minFileSize);
+        return true;
+    }
+
+    // Describes the settings (recorded in benchmark baselines, so that results are only compared on the same corpus)
+    public String describe () {
+        return String.format("seed=%d comments=%s strings=%s numbers=%s keywords=%s line-length=%d size=%d..%d " +
+                        "pathological=%s", seed, commentDensity, stringDensity, numberDensity, keywordFrequency,
+                lineLength, minFileSize, maxFileSize, pathologicalRate);
+    }
+
+    static final String USAGE = "usage: CorpusGenerator [--seed=<n>] [--comments=<0-1>] [--strings=<0-1>] " +
+            "[--numbers=<0-1>] [--keywords=<0-1>] [--line-length=<n>] [--min-size=<n>] [--max-size=<n>] " +
+            "[--pathological=<0-1>] <output dir> <files>";
+
+    public static void main (String[] args) {
+        CorpusGenerator generator = new CorpusGenerator();
+        String outputDir = null;
+        int files = -1;
+        for (String arg : args) {
+            if (generator.parseOption(arg))
+                continue;
+            if (arg.startsWith("--")) {
+                System.err.printf("unknown option '%s'\n", arg);
+                System.err.println(USAGE);
+                System.exit(-1);
+            } else if (outputDir == null) {
+                outputDir = arg;
+            } else if (files < 0) {
+                files = Integer.parseInt(arg);
+            }
+        }
+        if (outputDir == null || files < 0) {
+            System.err.println(USAGE);
+            System.exit(-1);
+        }
+        try {
+            long chars = generator.writeCorpus(new File(outputDir), files);
+            System.out.printf("generated %d files (%d chars) in '%s' (%s)\n", files, chars, outputDir,
+                    generator.describe());
+        } catch (IOException e) {
+            System.err.printf("Error writing corpus to '%s'\n", outputDir);
+            e.printStackTrace();
+            System.exit(-1);
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package highlighter;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.TreeSet;
+
+/**
+ * Blocking task queue for Htmlify's worker pool, in either of two orders:
+ *
+ *    fifo            tasks are taken in the order they were added (ie. directory walk order)
+ *    largest-first   take() returns the task with the highest estimated cost, and pollSmallest() the lowest
+ *
+ * A task's estimated cost is its size in bytes times the measured cost per byte of its kind (eg. single files,
+ * archive entries, batches of small files and streamed files all run at different speeds), which is refined as tasks
+ * finish (see recordCost). Tasks of the same kind are kept sorted by size, so finding the largest / smallest task
+ * only has to compare the ends of each kind's set with the current cost estimates.
+ *
+ * Kinds that haven't been measured yet are assumed to cost the average of those that have.
+ *
+ * In largest-first mode, take() blocks until hold(false) is called, so that workers don't start on whatever was
+ * found first while the tree is still being walked. The order can only be changed while the queue is empty.
+ *
+ * Thread-safe.
+ */
+public class CostQueue<T> {
+    static final double COST_SMOOTHING = 0.2;   // weight of each new measurement in the running per-byte cost
+
+    private static class Entry<T> implements Comparable<Entry<T>> {
+        final T task;
+        final long bytes;
+        final long seq;
+
+        Entry (T task, long bytes, long seq) {
+            this.task = task;
+            this.bytes = bytes;
+            this.seq = seq;
+        }
+
+        @Override
+        public int compareTo (Entry<T> other) {
+            if (bytes != other.bytes)
+                return bytes < other.bytes ? -1 : 1;
+            return Long.compare(seq, other.seq);
+        }
+    }
+
+    private boolean largestFirst;
+    private final ArrayDeque<T> fifo = new ArrayDeque<>();
+    private final TreeSet<Entry<T>>[] kinds;
+    private final double[] nsPerByte;
+    private final boolean[] measured;
+    private int size = 0;
+    private long seq = 0;
+    private boolean held;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public CostQueue (int numKinds, boolean largestFirst) {
+        setLargestFirst(largestFirst);
+        this.kinds = new TreeSet[numKinds];
+        for (int i = 0; i < numKinds; ++i)
+            kinds[i] = new TreeSet<>();
+        this.nsPerByte = new double[numKinds];
+        this.measured = new boolean[numKinds];
+        Arrays.fill(nsPerByte, 1.0);
+    }
+
+    public synchronized void setLargestFirst (boolean largestFirst) {
+        if (size != 0)
+            throw new IllegalStateException("can't change the order of a non-empty queue");
+        this.largestFirst = largestFirst;
+        this.held = largestFirst;
+        notifyAll();
+    }
+
+    public synchronized boolean isLargestFirst () {
+        return largestFirst;
+    }
+
+    public synchronized void add (T task, int kind, long bytes) {
+        if (largestFirst)
+            kinds[kind].add(new Entry<>(task, Math.max(bytes, 0), seq++));
+        else
+            fifo.add(task);
+        ++size;
+        notifyAll();
+    }
+
+    // While held, take() blocks (pollLargest / pollSmallest still work)
+    public synchronized void hold (boolean held) {
+        this.held = held;
+        notifyAll();
+    }
+
+    public synchronized boolean isEmpty () {
+        return size == 0;
+    }
+
+    // Removes and returns the next task (the largest, in largest-first mode), blocking until there is one
+    public synchronized T take () throws InterruptedException {
+        while (size == 0 || held)
+            wait();
+        return pollLargest();
+    }
+
+    // Removes and returns the next task (the largest, in largest-first mode), or null if there isn't one
+    public synchronized T pollLargest () {
+        return poll(true);
+    }
+
+    // Removes and returns the task with the lowest estimated cost (the next task, in fifo mode), or null
+    public synchronized T pollSmallest () {
+        return poll(false);
+    }
+
+    private T poll (boolean largest) {
+        if (size == 0)
+            return null;
+        --size;
+        if (!largestFirst)
+            return fifo.poll();
+        double defaultCost = 0;
+        int numMeasured = 0;
+        for (int k = 0; k < kinds.length; ++k) {
+            if (measured[k]) {
+                defaultCost += nsPerByte[k];
+                ++numMeasured;
+            }
+        }
+        defaultCost = numMeasured > 0 ? defaultCost / numMeasured : 1.0;
+        int best = -1;
+        double bestCost = 0;
+        for (int k = 0; k < kinds.length; ++k) {
+            if (kinds[k].isEmpty())
+                continue;
+            double cost = (largest ? kinds[k].last() : kinds[k].first()).bytes *
+                    (measured[k] ? nsPerByte[k] : defaultCost);
+            if (best < 0 || (largest ? cost > bestCost : cost < bestCost)) {
+                best = k;
+                bestCost = cost;
+            }
+        }
+        return (largest ? kinds[best].pollLast() : kinds[best].pollFirst()).task;
+    }
+
+    // Records how long a finished task of the given kind and size took
+    public synchronized void recordCost (int kind, long bytes, long nanos) {
+        if (bytes <= 0)
+            return;
+        double sample = (double)nanos / bytes;
+        nsPerByte[kind] = measured[kind] ? nsPerByte[kind] + (sample - nsPerByte[kind]) * COST_SMOOTHING : sample;
+        measured[kind] = true;
+    }
+
+    // Returns the current estimated cost per byte of each kind of task (in ns, or 1.0 if not measured yet)
+    public synchronized double[] getCostPerByte () {
+        return nsPerByte.clone();
+    }
+}
@@ -0,0 +1,323 @@
+package highlighter;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Content index used by Htmlify --dedup to render each distinct source file only once. Duplicates get a hard link to
+ * the first file's output, or a copy if linking fails (eg. across file systems).
+ *
+ * Only files whose size matches another file's size get hashed (with SHA-256). Everything is queued before it runs,
+ * so sizes are counted up front (registerSize). A file that starts rendering without a hash because its size is
+ * unique at the time is kept as a late candidate until the walk finishes (see walkDone). If a file of the same size
+ * turns up later, the first file is re-read and hashed then, whether it's done rendering or not: if it's still
+ * rendering, duplicates wait for it as they would for a hashed file. On a tree without duplicates, the only cost is
+ * one map lookup per file, plus hashing the files whose sizes happen to collide.
+ *
+ * The css link is part of the key, since files in different directories can link to the stylesheet differently.
+ *
+ * Thread-safe.
+ */
+public class DedupIndex<T extends DedupIndex.Source> {
+    // An input file (ie. a task) and where its output goes
+    public interface Source {
+        Reader openSource () throws IOException;
+        File getOutputFile ();
+        long inputSize ();
+    }
+
+    // A distinct content: the first file rendered with it, and duplicates waiting for its output to be written
+    public static class Entry<T> {
+        private File original = null;
+        private long renderNanos = 0;
+        private boolean done = false;
+        private final List<T> pending = new ArrayList<>();
+
+        public File getOriginal () {
+            return original;
+        }
+    }
+
+    // A file rendering (or rendered) without a hash, see shouldHash
+    private static class Candidate<T> {
+        final T source;
+        final String cssLink;
+        long renderNanos = 0;
+        boolean done = false;       // rendered
+        boolean failed = false;     // failed to render
+        boolean claimed = false;    // being hashed by claim() for a file of the same size
+        ByteBuffer key = null;      // set if claimed while rendering: its entry, which rendered() completes
+
+        Candidate (T source, String cssLink) {
+            this.source = source;
+            this.cssLink = cssLink;
+        }
+    }
+
+    private final String[] outputSuffixes;  // outputs written per file, eg. "" (.html) and ".gz" (.html.gz)
+    private final Map<Long, Integer> sizeCounts = new HashMap<>();
+    private final Map<Long, Candidate<T>> candidates = new HashMap<>();
+    private final Map<ByteBuffer, Entry<T>> entries = new HashMap<>();
+    private boolean walkDone = false;
+    private final ThreadLocal<MessageDigest> digests = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue () {
+            try {
+                return MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    };
+
+    // stats
+    private int duplicates = 0;
+    private int hashedFiles = 0;
+    private int lateHashes = 0;
+    private int links = 0;
+    private int copies = 0;
+    private long hashedBytes = 0;
+    private long hashNanos = 0;
+    private long bytesSaved = 0;
+    private long nanosSaved = 0;
+
+    public DedupIndex (String[] outputSuffixes) {
+        this.outputSuffixes = outputSuffixes;
+    }
+
+    // Counts an input of the given size (call for every file before it's processed)
+    public synchronized void registerSize (long size) {
+        Integer count = sizeCounts.get(size);
+        sizeCounts.put(size, count != null ? count + 1 : 1);
+    }
+
+    // Stops adding late candidates, and drops those whose size turned out to be unique (call once every file has been
+    // registered)
+    public synchronized void walkDone () {
+        walkDone = true;
+        candidates.keySet().retainAll(sharedSizes());
+    }
+
+    private Set<Long> sharedSizes () {
+        Set<Long> shared = new HashSet<>();
+        for (Map.Entry<Long, Integer> size : sizeCounts.entrySet())
+            if (size.getValue() > 1)
+                shared.add(size.getKey());
+        return shared;
+    }
+
+    // Returns true if a file of this size may have duplicates, and should be hashed. Otherwise the caller renders it
+    // without a hash and then calls renderedUnhashed(); until then, it's a late candidate in case a file of the same
+    // size is registered later.
+    public synchronized boolean shouldHash (T source, String cssLink) {
+        long size = source.inputSize();
+        Integer count = sizeCounts.get(size);
+        if (count != null && count > 1)
+            return true;
+        if (!walkDone && !candidates.containsKey(size))
+            candidates.put(size, new Candidate<>(source, cssLink));
+        return false;
+    }
+
+    // Records that a file shouldHash() turned down has been rendered (or failed to render, if ok is false). If a file
+    // of the same size claimed it in the meantime, this completes its entry as rendered() does, and returns the
+    // duplicates that were waiting for it (for the caller to process itself if the file failed).
+    public List<T> renderedUnhashed (T source, long renderNanos, boolean ok) {
+        ByteBuffer key;
+        synchronized (this) {
+            long size = source.inputSize();
+            Candidate<T> candidate = candidates.get(size);
+            if (candidate == null || candidate.source != source)
+                return new ArrayList<T>();
+            candidate.done = true;
+            candidate.failed = !ok;
+            candidate.renderNanos = renderNanos;
+            key = candidate.key;
+            if (!ok || candidate.claimed)
+                candidates.remove(size);    // (a failed file is left to the next one with its content)
+        }
+        return key != null ? rendered(key, source, renderNanos, ok) : new ArrayList<T>();
+    }
+
+    // Returns the key for a source file's contents
+    public ByteBuffer key (CharSequence source, String cssLink) {
+        long start = System.nanoTime();
+        MessageDigest digest = digests.get();
+        int n = source.length();
+        update(digest, source);
+        digest.update((byte)0);
+        if (cssLink != null) {
+            digest.update((byte)1);
+            for (int i = 0; i < cssLink.length(); ++i) {
+                digest.update((byte)(cssLink.charAt(i) >> 8));
+                digest.update((byte)cssLink.charAt(i));
+            }
+        }
+        ByteBuffer key = ByteBuffer.wrap(digest.digest());
+        long elapsed = System.nanoTime() - start;
+        synchronized (this) {
+            ++hashedFiles;
+            hashedBytes += n;
+            hashNanos += elapsed;
+        }
+        return key;
+    }
+
+    // Adds the chars of s to a digest (as big-endian utf-16)
+    static void update (MessageDigest digest, CharSequence s) {
+        byte[] buf = new byte[8192];
+        int n = s.length();
+        for (int i = 0; i < n; ) {
+            int len = Math.min(n - i, buf.length / 2);
+            for (int j = 0; j < len; ++j) {
+                char c = s.charAt(i + j);
+                buf[2 * j] = (byte)(c >> 8);
+                buf[2 * j + 1] = (byte)c;
+            }
+            digest.update(buf, 0, 2 * len);
+            i += len;
+        }
+    }
+
+    // Looks up a hashed file. Returns null if it's the first file with this content: the caller renders it, then calls
+    // rendered(). Otherwise the caller calls addDuplicate() on the returned entry.
+    public Entry<T> claim (ByteBuffer key, long size) {
+        Candidate<T> candidate;
+        synchronized (this) {
+            Entry<T> entry = entries.get(key);
+            if (entry != null)
+                return entry;
+            candidate = candidates.get(size);
+            if (candidate != null && candidate.claimed) {
+                candidate = null;
+            } else if (candidate != null) {
+                candidate.claimed = true;
+                if (candidate.done)
+                    candidates.remove(size);
+            }
+        }
+        // The first file of this size started rendering before its size was known to be shared: hash it now
+        if (candidate != null) {
+            StringBuilder sb = new StringBuilder();
+            try (Reader reader = candidate.source.openSource()) {
+                Htmlify.readFully(reader, sb);
+                ByteBuffer lateKey = key(sb, candidate.cssLink);
+                synchronized (this) {
+                    ++lateHashes;
+                    if (!candidate.failed && !entries.containsKey(lateKey)) {
+                        Entry<T> entry = new Entry<>();
+                        if (candidate.done) {
+                            entry.original = candidate.source.getOutputFile();
+                            entry.renderNanos = candidate.renderNanos;
+                            entry.done = true;
+                        } else {
+                            candidate.key = lateKey;    // still rendering: duplicates wait for renderedUnhashed
+                        }
+                        entries.put(lateKey, entry);
+                    }
+                }
+            } catch (IOException e) {
+                System.err.printf("Error reading the source of '%s' for deduplication\n",
+                        candidate.source.getOutputFile());
+                e.printStackTrace();
+            }
+        }
+        synchronized (this) {
+            Entry<T> entry = entries.get(key);
+            if (entry != null)
+                return entry;
+            entries.put(key, new Entry<T>());
+            return null;
+        }
+    }
+
+    // Records that the first file with this content has been rendered (or failed to render, if ok is false), and
+    // materialises any duplicates that were waiting for it. Returns those duplicates: if the file failed, they
+    // haven't been materialised, and the caller should process them itself.
+    public List<T> rendered (ByteBuffer key, T original, long renderNanos, boolean ok) {
+        List<T> pending;
+        Entry<T> entry;
+        synchronized (this) {
+            entry = entries.get(key);
+            pending = new ArrayList<>(entry.pending);
+            entry.pending.clear();
+            if (!ok) {
+                // Let the next file with this content render it instead
+                entries.remove(key);
+                return pending;
+            }
+            entry.original = original.getOutputFile();
+            entry.renderNanos = renderNanos;
+            entry.done = true;
+        }
+        for (T duplicate : pending)
+            materialise(entry, duplicate);
+        return pending;
+    }
+
+    // Adds a duplicate of an entry returned by claim(). Returns true if it was materialised now, or false if the
+    // first file is still rendering (it's materialised by rendered()).
+    public boolean addDuplicate (Entry<T> entry, T duplicate) {
+        synchronized (this) {
+            if (!entry.done) {
+                entry.pending.add(duplicate);
+                return false;
+            }
+        }
+        materialise(entry, duplicate);
+        return true;
+    }
+
+    // Links (or copies) the original's outputs to the duplicate's
+    private void materialise (Entry<T> entry, T duplicate) {
+        File outputFile = duplicate.getOutputFile();
+        long start = System.nanoTime();
+        boolean linked = true;
+        for (String suffix : outputSuffixes) {
+            Path source = new File(entry.original.getPath() + suffix).toPath();
+            Path target = new File(outputFile.getPath() + suffix).toPath();
+            try {
+                Files.deleteIfExists(target);
+                try {
+                    Files.createLink(target, source);
+                } catch (IOException | UnsupportedOperationException e) {
+                    Files.copy(source, target, StandardCopyOption.REPLACE_EXISTING);
+                    linked = false;
+                }
+            } catch (IOException e) {
+                System.err.printf("Error copying '%s' to '%s'\n", source, target);
+                e.printStackTrace();
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        synchronized (this) {
+            ++duplicates;
+            bytesSaved += duplicate.inputSize();
+            if (linked)
+                ++links;
+            else
+                ++copies;
+            nanosSaved += entry.renderNanos - elapsed;
+        }
+    }
+
+    public synchronized String getStats () {
+        return String.format("Dedup: %d duplicates (%d linked, %d copied), %d bytes and %.2f ms saved; hashed %d " +
+                        "files, %d bytes (%.2f ms, %d late)",
+                duplicates, links, copies, bytesSaved, nanosSaved * 1e-6, hashedFiles, hashedBytes, hashNanos * 1e-6,
+                lateHashes);
+    }
+}
@@ -0,0 +1,81 @@
+package highlighter;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Pool of reusable Deflater instances, used to write gzip-compressed output without allocating (and finalizing) a new
+ * Deflater + native zlib stream for every file.
+ *
+ * Not thread-safe: each worker thread should own its own pool.
+ *
+ * GZIPOutputStream can't be used with an external Deflater (it always creates and ends its own), so gzip() writes
+ * the gzip header / trailer (RFC 1952) itself around a raw deflate stream.
+ */
+public class DeflaterPool {
+    private final ArrayDeque<Deflater> free = new ArrayDeque<>();
+    private final CRC32 crc = new CRC32();
+
+    private static final byte[] GZIP_HEADER = {
+            0x1f, (byte)0x8b,   // magic
+            Deflater.DEFLATED,  // compression method
+            0,                  // flags
+            0, 0, 0, 0,         // mtime
+            0,                  // extra flags
+            (byte)0xff          // os (unknown)
+    };
+
+    // Returns a deflater (raw deflate, no zlib header) set to the given compression level
+    public Deflater acquire (int level) {
+        Deflater deflater = free.poll();
+        if (deflater == null)
+            deflater = new Deflater(level, true);
+        else
+            deflater.setLevel(level);
+        return deflater;
+    }
+
+    // Returns a deflater to the pool
+    public void release (Deflater deflater) {
+        deflater.reset();
+        free.push(deflater);
+    }
+
+    // Releases the native memory held by all pooled deflaters
+    public void end () {
+        for (Deflater deflater : free)
+            deflater.end();
+        free.clear();
+    }
+
+    // Writes data to out as a complete gzip stream. Returns the number of compressed bytes written.
+    public long gzip (byte[] data, int level, OutputStream out) throws IOException {
+        Deflater deflater = acquire(level);
+        try {
+            out.write(GZIP_HEADER);
+            DeflaterOutputStream dos = new DeflaterOutputStream(out, deflater, 8192);
+            dos.write(data);
+            dos.finish();
+
+            crc.reset();
+            crc.update(data, 0, data.length);
+            writeInt(out, (int)crc.getValue());
+            writeInt(out, data.length);
+            return GZIP_HEADER.length + deflater.getBytesWritten() + 8;
+        } finally {
+            release(deflater);
+        }
+    }
+
+    // Writes a 32-bit int in little-endian order
+    private static void writeInt (OutputStream out, int v) throws IOException {
+        out.write(v & 0xff);
+        out.write((v >>> 8) & 0xff);
+        out.write((v >>> 16) & 0xff);
+        out.write((v >>> 24) & 0xff);
+    }
+}
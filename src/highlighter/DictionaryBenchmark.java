@@ -0,0 +1,132 @@
+package highlighter;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Benchmarks StringMatcher with a large dictionary of identifiers (eg. every JDK class and method name): trie build
+ * time and footprint (see StringMatcher.getBuildStats), the heap it actually retains, and match throughput over text
+ * made of dictionary entries and other words, for both match() per position and matchAll(). Also checks that the two
+ * agree.
+ *
+ * The dictionary is read from a file (one entry per line, see StringMatcher.readDictionary), or generated: given a
+ * number instead of a file, that many distinct API-like class / method names are made up.
+ *
+ * usage: DictionaryBenchmark <dictionary file | entry count> [<iterations>]
+ */
+public class DictionaryBenchmark {
+    static final int TAG = 1;
+    static final String[] PARTS = {
+            "Abstract", "Array", "Buffer", "Buffered", "Builder", "Byte", "Cache", "Channel", "Char", "Class", "Collection",
+            "Concurrent", "Config", "Context", "Default", "Deque", "Entry", "Event", "Exception", "Factory", "File",
+            "Filter", "Format", "Handler", "Hash", "Input", "Iterator", "Key", "Linked", "List", "Listener", "Loader",
+            "Lock", "Manager", "Map", "Node", "Object", "Output", "Path", "Pool", "Provider", "Queue", "Reader",
+            "Reference", "Request", "Resource", "Service", "Set", "Sorted", "Stream", "String", "Task", "Thread",
+            "Tree", "Type", "Util", "Value", "View", "Weak", "Writer"
+    };
+    static final String[] VERBS = { "get", "set", "is", "has", "add", "remove", "create", "to", "for", "with", "new" };
+
+    // Makes up n distinct class and method names
+    static List<String> generate (int n, Random random) {
+        Set<String> names = new LinkedHashSet<>();
+        StringBuilder sb = new StringBuilder();
+        while (names.size() < n) {
+            sb.setLength(0);
+            boolean method = random.nextBoolean();
+            if (method)
+                sb.append(VERBS[random.nextInt(VERBS.length)]);
+            for (int k = 1 + random.nextInt(3); k > 0; --k)
+                sb.append(PARTS[random.nextInt(PARTS.length)]);
+            if (random.nextInt(4) == 0)
+                sb.append(random.nextInt(100));
+            names.add(sb.toString());
+        }
+        return new ArrayList<>(names);
+    }
+
+    // Text of ~chars chars: dictionary entries, and words that aren't (or only start like) one, separated by terminals
+    static String makeText (List<String> entries, int chars, Random random) {
+        StringBuilder sb = new StringBuilder(chars + 64);
+        String[] separators = { " ", ".", "(", ");\n", ", " };
+        while (sb.length() < chars) {
+            String entry = entries.get(random.nextInt(entries.size()));
+            switch (random.nextInt(3)) {
+                case 0:  sb.append(entry); break;
+                case 1:  sb.append(entry, 0, 1 + random.nextInt(entry.length())).append("Xyz"); break;
+                default: sb.append("local").append(random.nextInt(1000)); break;
+            }
+            sb.append(separators[random.nextInt(separators.length)]);
+        }
+        return sb.toString();
+    }
+
+    static long usedHeap () {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; ++i)
+            System.gc();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    // Returns the throughput of match() at every position, in MB/s (chars / 1e6 per second)
+    static double runMatch (StringMatcher matcher, String text, int iterations) {
+        long start = System.nanoTime();
+        int sum = 0;
+        for (int k = 0; k < iterations; ++k) {
+            for (int i = 0, n = text.length(); i < n; ++i)
+                sum += matcher.match(text, i);
+        }
+        if (sum == 42)
+            System.out.print("");   // (keeps the loop from being optimized away)
+        return (long)text.length() * iterations / 1e6 / ((System.nanoTime() - start) * 1e-9);
+    }
+
+    // Returns the throughput of matchAll(), in MB/s
+    static double runMatchAll (StringMatcher matcher, String text, int[] out, int iterations) {
+        long start = System.nanoTime();
+        for (int k = 0; k < iterations; ++k)
+            matcher.matchAll(text, out);
+        return (long)text.length() * iterations / 1e6 / ((System.nanoTime() - start) * 1e-9);
+    }
+
+    public static void main (String[] args) throws IOException {
+        if (args.length != 1 && args.length != 2) {
+            System.err.println("usage: DictionaryBenchmark <dictionary file | entry count> [<iterations>]");
+            System.exit(-1);
+        }
+        int iterations = args.length == 2 ? Integer.parseInt(args[1]) : 10;
+        Random random = new Random(1);
+        File file = new File(args[0]);
+        List<String> entries = file.isFile() ? StringMatcher.readDictionary(file) :
+                generate(Integer.parseInt(args[0]), random);
+
+        long heapBefore = usedHeap();
+        StringMatcher matcher = new StringMatcher(new FastStats());
+        matcher.setSnapshotFile(null);
+        matcher.addAll(entries, TAG);
+        matcher.rebuild();
+        long heapAfter = usedHeap();
+        System.out.println(matcher.getBuildStats());
+        System.out.printf("Heap retained by the matcher (including its rules): %.2f MB\n",
+                (heapAfter - heapBefore) / (double)(1 << 20));
+
+        String text = makeText(entries, 1 << 20, random);
+        int[] out = new int[text.length()];
+        matcher.matchAll(text, out);
+        System.out.println(matcher.getBuildStats());
+        int mismatches = 0;
+        for (int i = 0, n = text.length(); i < n; ++i) {
+            if (Matcher.packMatch(matcher.match(text, i), matcher.matchedChars()) != out[i])
+                ++mismatches;
+        }
+        System.out.printf("%d chars, %d mismatches between match() and matchAll()\n", text.length(), mismatches);
+
+        runMatch(matcher, text, Math.max(1, iterations / 2));    // warmup
+        runMatchAll(matcher, text, out, Math.max(1, iterations / 2));
+        System.out.printf("match()     %8.2f MB/s\n", runMatch(matcher, text, iterations));
+        System.out.printf("matchAll()  %8.2f MB/s\n", runMatchAll(matcher, text, out, iterations));
+    }
+}
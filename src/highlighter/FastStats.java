@@ -37,7 +37,7 @@ public class FastStats implements Stats {
     public void beginFileRead() {}
 
     @Override
-    public void endFileRead() {}
+    public void endFileRead(long bytes) {}
 
     @Override
     public void beginFileWrite() {}
@@ -45,6 +45,12 @@ public class FastStats implements Stats {
     @Override
     public void endFileWrite() {}
 
+    @Override
+    public void beginCompress() {}
+
+    @Override
+    public void endCompress(long rawBytes, long compressedBytes) {}
+
     @Override
     public void beginProcessingFile() {}
 
@@ -70,9 +76,33 @@ public class FastStats implements Stats {
         runTime = System.nanoTime() - runStart;
     }
 
+    private long idleTailTime = 0;
+    private long maxIdleTail = 0;
+    private int idleTailCalls = 0;
+
+    @Override
+    public void recordIdleTail(long nanos) {
+        idleTailTime += nanos;
+        maxIdleTail = Math.max(maxIdleTail, nanos);
+        ++idleTailCalls;
+    }
+
+    private int deadlinesExceeded = 0;
+
+    @Override
+    public void recordDeadlineExceeded() {
+        ++deadlinesExceeded;
+    }
+
     @Override
     public String getStats() {
-        return String.format("Finished in %f ms", (double)runTime * 1e-6);
+        String s = String.format("Finished in %f ms", (double)runTime * 1e-6);
+        if (deadlinesExceeded != 0)
+            s += String.format("\nTimed out: %d files (written as plain text)", deadlinesExceeded);
+        if (idleTailCalls != 0)
+            s += String.format("\nIdle tail: %f ms across %d workers (max %f ms)",
+                    (double)idleTailTime * 1e-6, idleTailCalls, (double)maxIdleTail * 1e-6);
+        return s;
     }
 
     @Override
@@ -1,10 +1,18 @@
 package highlighter;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Enumeration;
 import java.util.List;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 
 /**
  * Created by Seiji on 4/11/15.
@@ -25,25 +33,82 @@ public class Htmlify {
     static final boolean SHOW_PROCESSED_DIRS = false;
     static final boolean SHOW_PROCESSED_FILES = true;
 
+    static final String SHARED_CSS_FILE = "highlighter.css";
+
     public String cssLink = null;
+    public boolean compactHtml = false;     // see Parser.makeHtml(String, String, boolean)
+    public boolean plainOutput = true;      // write <file>.html
+    public boolean gzipOutput  = false;     // write <file>.html.gz
+    public int gzipLevel = Deflater.DEFAULT_COMPRESSION;
+    public boolean htmlOutput = true;       // output formats, all rendered from one parse (see TokenRenderer):
+    public boolean ansiOutput = false;      // html (plainOutput / gzipOutput), <file>.ansi and <file>.json
+    public boolean jsonOutput = false;
+    public long streamThreshold = 64L << 20;   // inputs at least this large are parsed in chunks (see StreamParser)
+    public long batchBytes = 64 << 10;          // target input bytes per BatchTask (0 disables batching)
+    public long fileTimeout = 0;                // ns a file may take to highlight before it's written as plain text
+                                                // (0 for no limit; streamed files have no limit)
+    public int pageLines = 0;                   // split outputs longer than this many lines into pages (see
+                                                // PagedHtmlWriter), or 0
+    static final int MAX_BATCH_FILES = 1024;
+
+    // Task kinds, which are timed separately to estimate task costs (see CostQueue)
+    static final int TASK_FILE = 0;
+    static final int TASK_ARCHIVE_ENTRY = 1;
+    static final int TASK_BATCH = 2;
+    static final int TASK_STREAMED = 3;
+    static final int NUM_TASK_KINDS = 4;
+    private BatchTask pendingBatch = null;
+    private int batchCount = 0;
+    private int batchedFiles = 0;
+    private int unbatchedFiles = 0;
+    private final DeflaterPool deflaters = new DeflaterPool();   // used by the main thread
+    private final List<ZipFile> openArchives = new ArrayList<>();
+    private PackWriter pack = null;     // if set, all output is written to this pack instead of the output dir
+    DedupIndex<FileProcessTask> dedup = null;   // if set, files with the same contents are only rendered once
+    SlowFileReport slowFiles = null;            // if set, per-file timings are recorded here
+    TokenCache tokenCache = null;               // if set, parsed tokens are saved next to the outputs and reused
     ThreadPool pool;
+    MemoryBudget budget;                // bounds the memory held by queued / running tasks (when multithreading)
 
     public Htmlify (Stats stats, String cssLink) {
+        this(stats, cssLink, 0);
+    }
+
+    public Htmlify (Stats stats, String cssLink, int threads) {
+        this(stats, cssLink, threads, null);
+    }
+
+    // threads is the number of worker threads to use, or 0 to adjust it automatically (see WorkerController).
+    // If dictionary isn't null, the names in it are highlighted (see Parser.setDictionary).
+    public Htmlify (Stats stats, String cssLink, int threads, List<String> dictionary) {
         this.stats = stats;
 
         this.parser = USE_NAIVE_MATCHER ?
                 new Parser(new NaiveMatcher(stats), stats) :
                 new Parser(new StringMatcher(stats), stats);
+        if (dictionary != null) {   // (before the workers copy the parser)
+            int names = parser.setDictionary(dictionary);
+            System.out.printf("Dictionary: %d names (%d entries skipped: not identifiers)\n", names,
+                    dictionary.size() - names);
+        }
         this.cssLink = cssLink;
         if (USE_MULTITHREADING) {
-            int threads = Runtime.getRuntime().availableProcessors();
-            assert(threads > 0);
-            threads = 30;
-            System.out.printf("Using %d threads\n", threads);
-            pool = new ThreadPool(threads);
+            int cpus = WorkerController.cpuLimit();
+            if (threads > 0) {
+                System.out.printf("Using %d threads\n", threads);
+                pool = new ThreadPool(threads);
+            } else {
+                pool = new ThreadPool(cpus);
+                pool.controller = new WorkerController(pool, cpus);
+                System.out.printf("Using %d threads to start (adaptive, cpu limit %d, max %d)\n",
+                        cpus, cpus, pool.controller.getMaxWorkers());
+                pool.controller.start();
+            }
 //            pool = new ThreadPool(threads > 1 ? threads - 1 : threads);
+            budget = new MemoryBudget(MemoryBudget.defaultBudget());
         } else {
             pool = null;
+            budget = null;
         }
     }
 
@@ -69,36 +134,128 @@ public class Htmlify {
 
     class ThreadPool {
         private final List<Worker> workers = new ArrayList<>();
-        private final List<Stats>  threadStats = new ArrayList<>();
-        private final BlockingQueue<FileProcessTask> taskQueue = new LinkedBlockingQueue<>();
+        private final List<ThreadStats> threadStats = new ArrayList<>();
+        private final CostQueue<FileProcessTask> taskQueue = new CostQueue<>(NUM_TASK_KINDS, false);
         private boolean isStopped = false;
+        private int activeCount = 0;            // workers with index >= activeCount wait instead of taking tasks
+        private int pending = 0;                // tasks added but not done yet
+        private boolean trackAllocations = false;
+        WorkerController controller = null;     // adjusts activeCount, if set
 
         // Initializes the ThreadPool and spawns and runs n Worker threads.
         ThreadPool (int numThreads) {
-            for (int i = 0; i < numThreads; ++i) {
+            setActiveCount(numThreads);
+        }
+
+        // Sets the number of workers taking tasks, starting new workers if needed. Workers above the count finish
+        // their current task (and possibly one more, if already waiting for it) and then wait to be reactivated.
+        public synchronized void setActiveCount (int n) {
+            assert(n > 0);
+            if (isStopped)
+                return;
+            while (workers.size() < n) {
 //                Stats stats = USE_FAST_STATS ? new FastStats() : new TimedStats();
-                Stats stats = new ThreadStats();
+                ThreadStats stats = new ThreadStats();
+                if (trackAllocations)
+                    stats.allocations = new AllocationStats();
+                Worker worker = new Worker(this, workers.size(), new Parser(parser, stats), stats);
                 threadStats.add(stats);
-                workers.add(new Worker(taskQueue, new Parser(parser, stats), stats));
-            }
-            for (Worker worker : workers) {
+                workers.add(worker);
                 worker.start();
             }
+            activeCount = n;
+            notifyAll();
+        }
+        public synchronized int getActiveCount () {
+            return activeCount;
+        }
+        // Turns on per-phase allocation tracking for all workers (call before queueing anything)
+        public synchronized void setTrackAllocations (boolean trackAllocations) {
+            this.trackAllocations = trackAllocations;
+            for (ThreadStats stats : threadStats)
+                stats.allocations = trackAllocations ? new AllocationStats() : null;
+        }
+        // Blocks worker #index while it's inactive
+        synchronized void awaitActive (int index) throws InterruptedException {
+            while (index >= activeCount && !isStopped)
+                wait();
+        }
+        // Switches the queue between fifo and largest-first order (only while it's empty). In largest-first order,
+        // workers don't take anything until startTasks() is called.
+        public void setLargestFirst (boolean largestFirst) {
+            taskQueue.setLargestFirst(largestFirst);
+        }
+        public boolean isLargestFirst () {
+            return taskQueue.isLargestFirst();
+        }
+        // Lets workers start taking tasks (call once everything has been queued)
+        public void startTasks () {
+            taskQueue.hold(false);
         }
         // Adds a task to be executed
         public synchronized void addTask (FileProcessTask task) {
             if (isStopped)
                 throw new IllegalStateException("Threadpool is stopped");
-            taskQueue.offer(task);
+            taskQueue.add(task, task.kind(), task.inputSize());
+            ++pending;
+        }
+        // Blocks until there's a task to run and returns it (the largest, in largest-first order). In largest-first
+        // order, tasks reserve their memory here rather than when they're submitted.
+        FileProcessTask takeTask () throws InterruptedException {
+            FileProcessTask task = taskQueue.take();
+            if (taskQueue.isLargestFirst())
+                reserveMemory(task);
+            return task;
+        }
+        // Records how long a task took, to refine the cost estimates of its kind
+        void taskDone (FileProcessTask task, long nanos) {
+            taskQueue.recordCost(task.kind(), task.inputSize(), nanos);
+            synchronized (this) {
+                if (--pending == 0)
+                    notifyAll();
+            }
+        }
+        // Blocks until every task added so far is done (without stopping the workers, unlike stop() / join())
+        synchronized void awaitIdle () throws InterruptedException {
+            while (pending > 0 && !isStopped)
+                wait();
+        }
+        // Records how long each active worker sat idle at the end of the run, ie. between finishing its last task
+        // and the last task finishing anywhere (lastTaskEnd is that of the main thread). Call after join().
+        void recordIdleTails (Stats stats, long lastTaskEnd) {
+            List<Worker> active;
+            synchronized (this) {
+                active = new ArrayList<>(workers.subList(0, activeCount));
+            }
+            long runEnd = lastTaskEnd;
+            for (Worker worker : active)
+                runEnd = Math.max(runEnd, worker.lastTaskEnd);
+            for (Worker worker : active) {
+                worker.stats.recordIdleTail(runEnd - worker.lastTaskEnd);
+                stats.recordIdleTail(runEnd - worker.lastTaskEnd);
+            }
         }
 
         // Kills all child threads
         public synchronized void stop () {
             isStopped = true;
+            if (controller != null)
+                controller.stopController();
+            notifyAll();
             for (Worker worker : workers)
                 worker.stopThread();
         }
 
+        // Waits for all child threads to finish their current task and exit (call after stop())
+        public void join () throws InterruptedException {
+            List<Worker> workers;
+            synchronized (this) {
+                workers = new ArrayList<>(this.workers);
+            }
+            for (Worker worker : workers)
+                worker.join();
+        }
+
         // Returns true if there are no pending tasks and all child threads have finished execution
         public synchronized boolean done () {
 //            if (!taskQueue.isEmpty())
@@ -111,30 +268,40 @@ public class Htmlify {
             // stop() is called (and not until then).
             return taskQueue.isEmpty();
         }
-        // Manually pops a task off the taskQueue.
+        // Manually pops a task off the taskQueue (or returns null if there are no pending tasks).
         // Enables the main thread to execute tasks alongside the workers if it's finished early and has nothing to do
-        // besides sleep.
-        public synchronized FileProcessTask getTask () throws InterruptedException {
-            return taskQueue.take();
+        // besides sleep. Must not block: a worker may take the last task between a done() check and this call.
+        // In largest-first order this steals the smallest task, leaving the large ones to the workers.
+        public FileProcessTask getTask () {
+            if (!taskQueue.isLargestFirst())
+                return taskQueue.pollLargest();
+            FileProcessTask task = taskQueue.pollSmallest();
+            if (task != null)
+                reserveMemory(task);
+            return task;
         }
         // Returns the list of thread stats
-        public synchronized List<Stats> getStats () {
-            return threadStats;
+        public synchronized List<ThreadStats> getStats () {
+            return new ArrayList<>(threadStats);
         }
     }
 
     // Worker thread that executes FileProcessingTasks
     static class Worker extends Thread {
         private boolean running = true;
-        private final BlockingQueue<FileProcessTask> taskQueue;
+        private final ThreadPool pool;
+        private final int index;
         private final Parser parserInstance;
         private final Stats stats;
+        private final DeflaterPool deflaters = new DeflaterPool();
+        volatile long lastTaskEnd = System.nanoTime();     // when the last task finished (or the worker started)
 
-        // Creates a worker that operates on a given taskQueue.
+        // Creates a worker that takes tasks from the given pool.
         // parserInstance and stats should be unique instances of their respective classes that are owned
         // by this thread. Sharing instances between threads will cause data corruption and errors.
-        Worker (BlockingQueue<FileProcessTask> taskQueue, Parser parserInstance, Stats stats) {
-            this.taskQueue = taskQueue;
+        Worker (ThreadPool pool, int index, Parser parserInstance, Stats stats) {
+            this.pool = pool;
+            this.index = index;
             this.parserInstance = parserInstance;
             this.stats = stats;
         }
@@ -144,13 +311,18 @@ public class Htmlify {
             running = true;
             while (running) {
                 try {
-                    FileProcessTask task = taskQueue.take();
-                    task.setInstanceVars(parserInstance, stats);
+                    pool.awaitActive(index);
+                    FileProcessTask task = pool.takeTask();
+                    task.setInstanceVars(parserInstance, stats, deflaters);
+                    long start = System.nanoTime();
                     task.run();
+                    lastTaskEnd = System.nanoTime();
+                    pool.taskDone(task, lastTaskEnd - start);
                 } catch (InterruptedException e) {
                     Thread.interrupted();
                 }
             }
+            deflaters.end();
         }
 
         // Kills the thread
@@ -166,96 +338,714 @@ public class Htmlify {
     }
 
     // Encapsulates a multithreaded htmlify operation on a single file
-    class FileProcessTask implements Runnable {
+    class FileProcessTask implements Runnable, DedupIndex.Source {
         public final File inputFile;
         public final File outputFile;
+        public final String cssLink;
         private Parser parser = null;
         private Stats  stats = null;
+        private DeflaterPool deflaters = null;
+        long reservedBytes = 0;     // bytes reserved from the memory budget (released once the task is done)
+        private int streamed = -1;  // cached result of isStreamed()
+        private long size = -1;     // cached result of inputSize()
+        private long formatChars = 0;   // chars written by the last renderFormats() call
 
-        FileProcessTask(File inputFile, File outputFile) {
+        FileProcessTask(File inputFile, File outputFile, String cssLink) {
             this.inputFile = inputFile;
             this.outputFile = outputFile;
+            this.cssLink = cssLink;
         }
 
         // Sets thread-specific state; must be called before run
-        public void setInstanceVars (Parser parser, Stats stats) {
+        public void setInstanceVars (Parser parser, Stats stats, DeflaterPool deflaters) {
             this.parser = parser;
             this.stats = stats;
+            this.deflaters = deflaters;
+        }
+
+        // Name of the input, used for logging
+        public String inputName () {
+            return inputFile.getPath();
+        }
+
+        public File getOutputFile () {
+            return outputFile;
+        }
+
+        // Size of the input in bytes (used for read throughput stats)
+        public long inputSize () {
+            if (size < 0)
+                size = inputFile.length();
+            return size;
+        }
+
+        // Number of files processed by this task
+        public int fileCount () {
+            return 1;
+        }
+
+        // Kind of task, for cost estimates (see CostQueue)
+        int kind () {
+            return isStreamed() ? TASK_STREAMED : TASK_FILE;
+        }
+
+        // Opens the source for reading
+        public Reader openSource () throws IOException {
+            return new FileReader(inputFile);
+        }
+
+        // Returns true if this input should be streamed (see runStreamed): if it's at least streamThreshold bytes, or
+        // if processing it in memory is estimated to take more than the whole heap
+        boolean isStreamed () {
+            if (streamed < 0) {
+                long size = inputSize();
+                boolean tooLarge = budget != null && budget.estimate(size) > Runtime.getRuntime().maxMemory();
+                streamed = size >= streamThreshold || tooLarge ? 1 : 0;
+            }
+            return streamed != 0;
         }
 
         // Executes the task on a given thread
         public void run() {
+            try {
+                if (isStreamed())
+                    runStreamed();
+                else if (runInMemory(new StringBuilder(), new char[8192]) && SHOW_PROCESSED_FILES)
+                    System.out.printf("Processed '%s'\n", inputName());
+            } finally {
+                if (reservedBytes != 0) {
+                    budget.release(reservedBytes);
+                    reservedBytes = 0;
+                }
+            }
+        }
+
+        // Reads the whole file, then parses it and writes the html (or, if it's a duplicate, links to the output of
+        // the first file with the same contents). sb and readBuffer are scratch buffers (reused between files by
+        // BatchTask). Returns false if the file couldn't be parsed.
+        boolean runInMemory (StringBuilder sb, char[] readBuffer) {
+            long fileStart = System.nanoTime();
             stats.beginProcessingFile();
-            StringBuilder sb = new StringBuilder();
-            try (BufferedReader reader = new BufferedReader(new FileReader(inputFile))) {
-                int c;
-                while ((c = reader.read()) != -1)
-                    sb.append((char)c);
+            stats.beginFileRead();
+            sb.setLength(0);
+            try (Reader reader = openSource()) {
+                readFully(reader, sb, readBuffer);
             } catch (FileNotFoundException e) {
-                System.err.printf("Error reading '%s'\n", inputFile);
+                System.err.printf("Error reading '%s'\n", inputName());
                 e.printStackTrace();
             } catch (IOException e) {
-                System.err.printf("Error reading '%s'\n", inputFile);
+                System.err.printf("Error reading '%s'\n", inputName());
                 e.printStackTrace();
             }
+            stats.endFileRead(inputSize());
+            long readEnd = System.nanoTime();
             String source = sb.toString();
             String html = null;
+            int tokenCount = 0;
+            long parseEnd = 0;
+            long outputChars = 0;
+            byte[] sourceHash = null;
+            TokenCache.Tokens cached = null;
+            ArrayList<Parser.Token> parsed = null;
 
+            ByteBuffer key = null;
+            if (dedup != null && dedup.shouldHash(this, cssLink)) {
+                key = dedup.key(source, cssLink);
+                DedupIndex.Entry<FileProcessTask> original = dedup.claim(key, inputSize());
+                if (original != null) {
+                    dedup.addDuplicate(original, this);
+                    stats.endProcessingFile();
+                    return true;
+                }
+            }
+            long renderStart = System.nanoTime();
+            if (fileTimeout > 0)
+                parser.setDeadline(renderStart + fileTimeout);
             try {
-                html = parser.makeHtml(source, cssLink);
+                TokenCursor tokens;
+                if (tokenCache != null) {
+                    sourceHash = tokenCache.hash(source);
+                    cached = tokenCache.load(TokenCache.cacheFile(outputFile), sourceHash, source);
+                }
+                if (cached != null) {
+                    tokenCount = cached.size();
+                    tokens = cached.cursor();
+                } else {
+                    parsed = parser.parse(source);
+                    tokenCount = parsed.size();
+                    tokens = new TokenCursor.ListCursor(parsed);
+                }
+                parseEnd = System.nanoTime();
+                if (pageLines > 0 || ansiOutput || jsonOutput || !htmlOutput) {
+                    html = renderFormats(tokens);   // (every format from one walk over the tokens)
+                    outputChars = formatChars;
+                } else {
+                    html = parser.makeHtml(tokens, cssLink, compactHtml);
+                }
+            } catch (Parser.DeadlineExceededException ex) {
+                System.err.printf("Highlighting '%s' took more than %d ms, writing it as plain text\n", inputName(),
+                        fileTimeout / 1000000);
+                stats.recordDeadlineExceeded();
+                if (parseEnd == 0)
+                    parseEnd = System.nanoTime();
+                parser.setDeadline(0);
+                if (pageLines > 0 || ansiOutput || jsonOutput || !htmlOutput) {
+                    // every requested format gets the source as a single plain token, so none of them is left stale
+                    List<Parser.Token> plain = new ArrayList<>();
+                    if (!source.isEmpty())
+                        plain.add(new Parser.Token(source, 0, Parser.TokenType.TEXT));
+                    html = renderFormats(new TokenCursor.ListCursor(plain));
+                    outputChars = formatChars;
+                } else {
+                    html = Parser.makePlainHtml(source, cssLink);
+                }
             } catch (Exception ex) {
-                System.err.printf("Error parsing '%s' in thread '%s'\n", inputFile, Thread.currentThread().getName());
+                System.err.printf("Error parsing '%s' in thread '%s'\n", inputName(), Thread.currentThread().getName());
                 ex.printStackTrace(System.err);
-                return;
+                if (dedup != null) {
+                    // Duplicates waiting for this file get processed (and fail) on their own
+                    for (FileProcessTask duplicate : key != null ? dedup.rendered(key, this, 0, false) :
+                            dedup.renderedUnhashed(this, 0, false)) {
+                        duplicate.setInstanceVars(parser, stats, deflaters);
+                        duplicate.runInMemory(sb, readBuffer);
+                    }
+                }
+                return false;
+            } finally {
+                parser.setDeadline(0);
             }
-            try (BufferedWriter br = new BufferedWriter(new FileWriter(outputFile))) {
-                br.write(html);
+            long htmlEnd = System.nanoTime();
+            if (html != null) {
+                if (budget != null) // source + token substrings + match array, token objects, html builder + string
+                    budget.recordExpansion(inputSize(), 8L * source.length() + 4L * html.length() +
+                            (parsed != null ? MemoryBudget.TOKEN_BYTES * tokenCount : 0));
+                writeOutput(outputFile, html, stats, deflaters);
+                outputChars += html.length();
+                PagedHtmlWriter.deletePages(outputFile, 1, pageOutput);   // (from an earlier run with --page-lines)
+            }
+            if (parsed != null && tokenCache != null)
+                tokenCache.save(TokenCache.cacheFile(outputFile), sourceHash, source, parsed);
+            long writeEnd = System.nanoTime();
+            if (key != null)
+                dedup.rendered(key, this, writeEnd - renderStart, true);
+            else if (dedup != null)
+                dedup.renderedUnhashed(this, writeEnd - renderStart, true);
+            if (slowFiles != null)
+                slowFiles.record(new SlowFileReport.Entry(inputName(), writeEnd - fileStart, readEnd - fileStart,
+                        parseEnd - renderStart, htmlEnd - parseEnd, html != null ? writeEnd - htmlEnd : -1,
+                        inputSize(), tokenCount, outputChars));
+            stats.endProcessingFile();
+            return true;
+        }
+
+        // Renders the tokens in every output format (see htmlOutput etc) in one walk over them, and writes all but
+        // unpaged html, which is returned (or null, if html is paged or not wanted). Sets formatChars.
+        String renderFormats (TokenCursor tokens) {
+            List<TokenRenderer> renderers = new ArrayList<>();
+            TokenRenderer.Html html = null;
+            PagedHtmlWriter pages = null;
+            TokenRenderer.Ansi ansi = null;
+            TokenRenderer.Json json = null;
+            if (htmlOutput && pageLines > 0)
+                renderers.add(pages = new PagedHtmlWriter(outputFile, pageLines, cssLink, compactHtml, pageOutput));
+            else if (htmlOutput)
+                renderers.add(html = new TokenRenderer.Html(cssLink, compactHtml));
+            if (ansiOutput)
+                renderers.add(ansi = new TokenRenderer.Ansi());
+            if (jsonOutput)
+                renderers.add(json = new TokenRenderer.Json());
+            formatChars = 0;
+            try {
+                parser.render(tokens, renderers.toArray(new TokenRenderer[0]));
             } catch (IOException e) {
-                System.err.printf("Error writing to '%s'\n", outputFile);
+                System.err.printf("Error writing pages of '%s'\n", outputFile);   // (only pages are written here)
                 e.printStackTrace();
+                return null;
             }
+            if (pages != null)
+                formatChars += pages.getOutputChars();
+            if (ansi != null) {
+                String text = ansi.getText();
+                writeText(formatFile(outputFile, ".ansi"), text, stats);
+                formatChars += text.length();
+            }
+            if (json != null) {
+                String text = json.getText();
+                writeText(formatFile(outputFile, ".json"), text, stats);
+                formatChars += text.length();
+            }
+            return html != null ? html.getHtml() : null;
+        }
+
+        // Same as run, but reads, parses and writes the file a chunk at a time, so neither the source nor the outputs
+        // have to fit in memory. Every output format is rendered as it goes, as in renderFormats.
+        void runStreamed () {
+            long fileStart = System.nanoTime();
+            stats.beginProcessingFile();
+            List<TokenRenderer> renderers = new ArrayList<>();
+            List<Writer> outputs = new ArrayList<>();
+            boolean failed = false;
+            try (Reader reader = openSource()) {
+                if (htmlOutput && pageLines > 0) {  // (each page is written as soon as it's been parsed)
+                    renderers.add(new PagedHtmlWriter(outputFile, pageLines, cssLink, compactHtml, pageOutput));
+                } else if (htmlOutput) {
+                    outputs.add(openStreamedOutput(outputFile));
+                    renderers.add(new TokenRenderer.Html(cssLink, compactHtml, outputs.get(outputs.size() - 1)));
+                }
+                if (ansiOutput) {
+                    outputs.add(openTextOutput(formatFile(outputFile, ".ansi")));
+                    renderers.add(new TokenRenderer.Ansi(outputs.get(outputs.size() - 1)));
+                }
+                if (jsonOutput) {
+                    outputs.add(openTextOutput(formatFile(outputFile, ".json")));
+                    renderers.add(new TokenRenderer.Json(outputs.get(outputs.size() - 1)));
+                }
+                new StreamParser(parser).render(reader, renderers.toArray(new TokenRenderer[0]));
+            } catch (IOException e) {
+                System.err.printf("Error processing '%s'\n", inputName());
+                e.printStackTrace();
+                failed = true;
+            } finally {
+                for (Writer out : outputs) {
+                    try {
+                        out.close();
+                    } catch (IOException e) {
+                        System.err.printf("Error writing the outputs of '%s'\n", inputName());
+                        e.printStackTrace();
+                        failed = true;
+                    }
+                }
+            }
+            if (failed)
+                return;
+            if (htmlOutput && pageLines == 0)
+                PagedHtmlWriter.deletePages(outputFile, 1, pageOutput);   // (from an earlier run with --page-lines)
             if (SHOW_PROCESSED_FILES)
-                System.out.printf("Processed '%s'\n", inputFile);
+                System.out.printf("Processed '%s' (streamed)\n", inputName());
+            if (slowFiles != null)   // the phases are interleaved chunk by chunk, so only the total is recorded
+                slowFiles.record(new SlowFileReport.Entry(inputName(), System.nanoTime() - fileStart, -1, -1, -1, -1,
+                        inputSize(), -1, -1));
             stats.endProcessingFile();
         }
     }
 
+    // Encapsulates a htmlify operation on a single .java entry inside of a zip / jar archive.
+    // Entries are read straight out of the (shared, thread-safe) ZipFile, so nothing gets extracted to disk.
+    class ArchiveEntryTask extends FileProcessTask {
+        public final ZipFile archive;
+        public final ZipEntry entry;
+
+        ArchiveEntryTask(ZipFile archive, ZipEntry entry, File outputFile, String cssLink) {
+            super(null, outputFile, cssLink);
+            this.archive = archive;
+            this.entry = entry;
+        }
+
+        @Override
+        public String inputName () {
+            return archive.getName() + "!/" + entry.getName();
+        }
+
+        @Override
+        public long inputSize () {
+            return entry.getSize();
+        }
+
+        @Override
+        int kind () {
+            return isStreamed() ? TASK_STREAMED : TASK_ARCHIVE_ENTRY;
+        }
+
+        @Override
+        public Reader openSource () throws IOException {
+            return new InputStreamReader(archive.getInputStream(entry));
+        }
+    }
+
+    // Runs a group of small file tasks as one task: one queue round trip, memory reservation and log line for the
+    // whole group, with the read buffers shared between its files (see batchBytes).
+    class BatchTask extends FileProcessTask {
+        private final List<FileProcessTask> items = new ArrayList<>();
+        private long bytes = 0;
+
+        BatchTask() {
+            super(null, null, null);
+        }
+
+        void add (FileProcessTask task) {
+            items.add(task);
+            bytes += task.inputSize();
+        }
+
+        boolean isFull () {
+            return bytes >= batchBytes || items.size() >= MAX_BATCH_FILES;
+        }
+
+        @Override
+        public String inputName () {
+            return String.format("batch of %d files", items.size());
+        }
+
+        @Override
+        public long inputSize () {
+            return bytes;
+        }
+
+        @Override
+        public int fileCount () {
+            return items.size();
+        }
+
+        @Override
+        boolean isStreamed () {
+            return false;
+        }
+
+        @Override
+        int kind () {
+            return TASK_BATCH;
+        }
+
+        @Override
+        public void run () {
+            StringBuilder sb = new StringBuilder();
+            char[] readBuffer = new char[8192];
+            int processed = 0;
+            try {
+                for (FileProcessTask item : items) {
+                    item.setInstanceVars(super.parser, super.stats, super.deflaters);
+                    if (item.runInMemory(sb, readBuffer))
+                        ++processed;
+                }
+            } finally {
+                if (reservedBytes != 0) {
+                    budget.release(reservedBytes);
+                    reservedBytes = 0;
+                }
+            }
+            if (SHOW_PROCESSED_FILES && !items.isEmpty())
+                System.out.printf("Processed batch of %d files (%d bytes): '%s' .. '%s'\n", processed, bytes,
+                        items.get(0).inputName(), items.get(items.size() - 1).inputName());
+        }
+    }
+
+    // Reads all remaining characters from reader into sb
+    static void readFully (Reader reader, StringBuilder sb) throws IOException {
+        readFully(reader, sb, new char[8192]);
+    }
+    static void readFully (Reader reader, StringBuilder sb, char[] buf) throws IOException {
+        int n;
+        while ((n = reader.read(buf)) != -1)
+            sb.append(buf, 0, n);
+    }
+
+    // Writes the generated html to outputFile and/or outputFile.gz (depending on plainOutput / gzipOutput).
+    // Compression runs on the calling thread, using that thread's deflater pool.
+    void writeOutput (File outputFile, String html, Stats stats, DeflaterPool deflaters) {
+        stats.beginFileWrite();
+        byte[] data = null;
+        if (plainOutput) {
+            data = html.getBytes();
+            try (OutputStream out = openOutput(outputFile)) {
+                out.write(data);
+            } catch (IOException e) {
+                System.err.printf("Error writing to '%s'\n", outputFile);
+                e.printStackTrace();
+            }
+        }
+        if (gzipOutput) {
+            File gzFile = new File(outputFile.getPath() + ".gz");
+            if (data == null)
+                data = html.getBytes();
+            try (OutputStream out = new BufferedOutputStream(openOutput(gzFile))) {
+                stats.beginCompress();
+                long compressed = deflaters.gzip(data, gzipLevel, out);
+                stats.endCompress(data.length, compressed);
+            } catch (IOException e) {
+                System.err.printf("Error writing to '%s'\n", gzFile);
+                e.printStackTrace();
+            }
+        }
+        stats.endFileWrite();
+    }
+
+    // Returns the output file for a format other than html (eg. Foo.html -> Foo.json)
+    static File formatFile (File outputFile, String extension) {
+        String path = outputFile.getPath();
+        if (path.endsWith(".html"))
+            path = path.substring(0, path.length() - ".html".length());
+        return new File(path + extension);
+    }
+
+    // Writes an output other than html (see ansiOutput / jsonOutput), uncompressed
+    void writeText (File file, String text, Stats stats) {
+        stats.beginFileWrite();
+        try (OutputStream out = openOutput(file)) {
+            out.write(text.getBytes());
+        } catch (IOException e) {
+            System.err.printf("Error writing to '%s'\n", file);
+            e.printStackTrace();
+        }
+        stats.endFileWrite();
+    }
+
+    // Opens an output other than html for a streamed file (see writeText)
+    Writer openTextOutput (File file) throws IOException {
+        return new BufferedWriter(new OutputStreamWriter(openOutput(file)), 1 << 16);
+    }
+
+    // Opens the outputs for a streamed file: outputFile and/or outputFile.gz (depending on plainOutput / gzipOutput).
+    // Streamed output is compressed with a GZIPOutputStream instead of the pooled deflaters, which need all the
+    // data up front.
+    Writer openStreamedOutput (File outputFile) throws IOException {
+        final OutputStream plain = plainOutput ? openOutput(outputFile) : null;
+        final OutputStream gzip = !gzipOutput ? null :
+                new GZIPOutputStream(openOutput(new File(outputFile.getPath() + ".gz")), 1 << 16) {
+                    { def.setLevel(gzipLevel); }
+                };
+        OutputStream out;
+        if (plain == null) {
+            out = gzip;
+        } else if (gzip == null) {
+            out = plain;
+        } else {
+            out = new OutputStream() {
+                @Override
+                public void write (int b) throws IOException {
+                    plain.write(b);
+                    gzip.write(b);
+                }
+                @Override
+                public void write (byte[] b, int off, int len) throws IOException {
+                    plain.write(b, off, len);
+                    gzip.write(b, off, len);
+                }
+                @Override
+                public void close () throws IOException {
+                    try {
+                        plain.close();
+                    } finally {
+                        gzip.close();
+                    }
+                }
+            };
+        }
+        return new BufferedWriter(new OutputStreamWriter(out), 1 << 16);
+    }
+
+    // Opens the outputs for each page of a paged file (see pageLines)
+    final PagedHtmlWriter.PageOutput pageOutput = new PagedHtmlWriter.PageOutput() {
+        @Override
+        public Writer open (File file) throws IOException {
+            return openStreamedOutput(file);
+        }
+
+        @Override
+        public boolean delete (File file) {    // (in every form openStreamedOutput may have written it)
+            return pack == null && (file.delete() | new File(file.getPath() + ".gz").delete());
+        }
+    };
+
+    // Opens an output file for writing, or a pack entry if writing to a pack. An existing file is deleted rather than
+    // overwritten in place: it may be a hard link shared with another output (see DedupIndex), which must keep its
+    // contents.
+    OutputStream openOutput (File outputFile) throws IOException {
+        if (pack != null)
+            return pack.openEntry(outputFile);
+        Files.deleteIfExists(outputFile.toPath());
+        return new FileOutputStream(outputFile);
+    }
+
+    // Creates an output directory (unless writing to a pack, which has no directories)
+    void makeOutputDir (File outputDir) {
+        if (pack == null && !outputDir.exists())
+            outputDir.mkdirs();
+    }
+
+    // Writes all further output into a single pack file instead of the output directory.
+    // outputPath is the path that output files would have been written under; entries are stored relative to it.
+    public void openPack (File packFile, String outputPath) throws IOException {
+        pack = new PackWriter(packFile, new File(outputPath));
+    }
+
+    // Finishes writing the pack file (if any). Must only be called once all tasks have finished.
+    public void closePack () {
+        if (pack == null)
+            return;
+        try {
+            pack.close();
+        } catch (IOException e) {
+            System.err.println("Error writing pack index");
+            e.printStackTrace();
+        }
+    }
+
     // Adds a FileProcessingTask to be executed by one of the worker threads
-    void processFileMultithreaded(File inputFile, File outputFile) {
+    void processFileMultithreaded(File inputFile, File outputFile, String cssLink) {
         assert(USE_MULTITHREADING == true);
-        ++fileCount;
-        pool.addTask(new FileProcessTask(inputFile, outputFile));
+        queueFile(new FileProcessTask(inputFile, outputFile, cssLink));
+    }
+
+    // Submits a single-file task, or adds it to the pending batch if it's small (under a quarter of batchBytes)
+    void queueFile (FileProcessTask task) {
+        if (dedup != null)
+            dedup.registerSize(task.inputSize());
+        if (batchBytes <= 0 || task.inputSize() >= batchBytes / 4) {
+            ++unbatchedFiles;
+            submitTask(task);
+            return;
+        }
+        if (pendingBatch == null)
+            pendingBatch = new BatchTask();
+        pendingBatch.add(task);
+        if (pendingBatch.isFull())
+            flushBatch();
+    }
+
+    // Submits the pending batch (call once all files have been queued)
+    void flushBatch () {
+        if (pendingBatch == null)
+            return;
+        ++batchCount;
+        batchedFiles += pendingBatch.fileCount();
+        BatchTask batch = pendingBatch;
+        pendingBatch = null;
+        submitTask(batch);
+    }
+
+    String getBatchStats () {
+        return String.format("Batching: %d files in %d batches (target %d KB, %.1f files / batch), %d files queued " +
+                        "individually", batchedFiles, batchCount, batchBytes >> 10,
+                batchCount > 0 ? (double)batchedFiles / batchCount : 0.0, unbatchedFiles);
+    }
+
+    // Queues a task on the thread pool, first blocking until its estimated memory use fits in the budget (in
+    // largest-first order, tasks are all queued up front and reserve their memory when they're taken instead)
+    void submitTask (FileProcessTask task) {
+        fileCount += task.fileCount();
+        if (!pool.isLargestFirst())
+            reserveMemory(task);
+        pool.addTask(task);
+    }
+
+    // Blocks until a task's estimated memory use fits in the budget, and reserves it (released when the task is done)
+    void reserveMemory (FileProcessTask task) {
+        if (budget != null) {
+            long bytes = budget.estimate(task.isStreamed() ? StreamParser.DEFAULT_CHUNK_SIZE : task.inputSize());
+            try {
+                task.reservedBytes = budget.acquire(bytes);
+            } catch (InterruptedException e) {
+                Thread.interrupted();
+            }
+        }
     }
 
     // Htmlifies a single file using the active thread
-    void processFileSinglethreaded(File inputFile, File outputFile) {
-        stats.beginProcessingFile();
+    void processFileSinglethreaded(File inputFile, File outputFile, String cssLink) {
+        runTask(new FileProcessTask(inputFile, outputFile, cssLink));
+    }
+
+    // Runs a task on the active thread
+    void runTask (FileProcessTask task) {
         ++fileCount;
-        stats.beginFileRead();
-        StringBuilder sb = new StringBuilder();
-        try (BufferedReader reader = new BufferedReader(new FileReader(inputFile))) {
-            int c;
-            while ((c = reader.read()) != -1)
-                sb.append((char)c);
-        } catch (FileNotFoundException e) {
-            e.printStackTrace();
+        if (dedup != null)
+            dedup.registerSize(task.inputSize());
+        task.setInstanceVars(parser, stats, deflaters);
+        task.run();
+    }
+
+    static boolean isArchive (File file) {
+        String name = file.getName();
+        return file.isFile() && (name.endsWith(".jar") || name.endsWith(".zip"));
+    }
+
+    // Htmlifies every .java entry in a zip / jar archive, mirroring the archive's internal layout under outputPath.
+    // When multithreading, the archive stays open until closeArchives() is called (after the pool has finished).
+    void processArchive (File archiveFile, String outputPath) {
+        stats.beginProcessingDir();
+        ZipFile archive;
+        try {
+            archive = new ZipFile(archiveFile);
         } catch (IOException e) {
+            System.err.printf("Error opening archive '%s'\n", archiveFile);
             e.printStackTrace();
+            stats.endProcessingDir();
+            return;
+        }
+        if (SHOW_PROCESSED_DIRS)
+            System.out.printf("Scanning '%s'\n", archiveFile.getPath());
+
+        Enumeration<? extends ZipEntry> entries = archive.entries();
+        while (entries.hasMoreElements()) {
+            ZipEntry entry = entries.nextElement();
+            String name = entry.getName();
+            if (entry.isDirectory() || !name.endsWith(".java"))
+                continue;
+            name = entryPath(name);
+            if (name == null) {
+                System.err.printf("Skipping '%s' in '%s': its path leads outside the output directory\n",
+                        entry.getName(), archiveFile);
+                continue;
+            }
+            File outputFile = new File(outputPath, name.substring(0, name.length() - ".java".length()) + ".html");
+            makeOutputDir(outputFile.getParentFile());
+            int slash = name.lastIndexOf('/');
+            String dirCssLink = cssLinkFor(slash >= 0 ? name.substring(0, slash) : "");
+
+            ArchiveEntryTask task = new ArchiveEntryTask(archive, entry, outputFile, dirCssLink);
+            if (USE_MULTITHREADING) {
+                queueFile(task);
+            } else {
+                runTask(task);
+            }
+        }
+        if (USE_MULTITHREADING) {
+            openArchives.add(archive);
+        } else {
+            closeArchive(archive);
+        }
+        stats.endProcessingDir();
+    }
+
+    // Returns an archive entry's name as a normalized relative path ('/' separated), or null if it's absolute or its
+    // ".." parts lead outside the archive root (so its output would be written outside the output directory)
+    static String entryPath (String name) {
+        String path = name.replace('\\', '/');
+        if (path.startsWith("/") || (path.length() > 1 && path.charAt(1) == ':'))
+            return null;
+        Deque<String> parts = new ArrayDeque<>();
+        for (String part : path.split("/")) {
+            if (part.isEmpty() || part.equals("."))
+                continue;
+            if (part.equals("..")) {
+                if (parts.isEmpty())
+                    return null;
+                parts.removeLast();
+            } else {
+                parts.addLast(part);
+            }
         }
-        String source = sb.toString();
-        stats.endFileRead();
-        String html = parser.makeHtml(source, cssLink);
+        if (parts.isEmpty())
+            return null;
+        StringBuilder sb = new StringBuilder();
+        for (String part : parts)
+            sb.append(sb.length() > 0 ? "/" : "").append(part);
+        return sb.toString();
+    }
 
-        stats.beginFileWrite();
-        try (BufferedWriter br = new BufferedWriter(new FileWriter(outputFile))) {
-            br.write(html);
+    // Closes all archives opened by processArchive(). Must only be called once all tasks have finished.
+    void closeArchives () {
+        for (ZipFile archive : openArchives)
+            closeArchive(archive);
+        openArchives.clear();
+    }
+
+    private static void closeArchive (ZipFile archive) {
+        try {
+            archive.close();
         } catch (IOException e) {
             e.printStackTrace();
         }
-        stats.endFileWrite();
-        stats.endProcessingFile();
-        if (SHOW_PROCESSED_FILES)
-            System.out.printf("Processed '%s'\n", inputFile);
     }
 
     void processDir (File dir, String rootPath, String outputPath) {
@@ -277,65 +1067,364 @@ public class Htmlify {
                 return name.endsWith(".java");
             }
         });
+        String dirCssLink = cssLinkFor(dir.getPath().substring(Math.min(rootPath.length(), dir.getPath().length())));
         for (File inputFile : inputFiles) {
-            File outputDir = new File(dir.getPath().replace(rootPath, outputPath));
-            if (!outputDir.exists())
-                outputDir.mkdirs();
-            File outputFile = new File(inputFile.getPath().replace(rootPath, outputPath).replace(".java", ".html"));
+            makeOutputDir(new File(dir.getPath().replace(rootPath, outputPath)));
+            File outputFile = outputFileFor(inputFile, rootPath, outputPath);
             if (USE_MULTITHREADING)
-                processFileMultithreaded(inputFile, outputFile);
+                processFileMultithreaded(inputFile, outputFile, dirCssLink);
             else
-                processFileSinglethreaded(inputFile, outputFile);
+                processFileSinglethreaded(inputFile, outputFile, dirCssLink);
         }
         stats.endProcessingDir();
         for (File subdir : subdirs)
             processDir(subdir, rootPath, outputPath);
     }
 
+    // Returns the output file for a .java file in the tree under rootPath
+    static File outputFileFor (File inputFile, String rootPath, String outputPath) {
+        return new File(inputFile.getPath().replace(rootPath, outputPath).replace(".java", ".html"));
+    }
+
+    // Re-highlights some files of the tree under rootPath (eg. ones that changed since it was processed, see
+    // SourceWatcher), returning once all of them have been written
+    void updateFiles (List<File> inputFiles, String rootPath, String outputPath) {
+        for (File inputFile : inputFiles) {
+            File dir = inputFile.getParentFile();
+            makeOutputDir(new File(dir.getPath().replace(rootPath, outputPath)));
+            File outputFile = outputFileFor(inputFile, rootPath, outputPath);
+            String dirCssLink = cssLinkFor(dir.getPath().substring(Math.min(rootPath.length(), dir.getPath().length())));
+            if (USE_MULTITHREADING)
+                processFileMultithreaded(inputFile, outputFile, dirCssLink);
+            else
+                processFileSinglethreaded(inputFile, outputFile, dirCssLink);
+        }
+        if (USE_MULTITHREADING) {
+            flushBatch();
+            pool.startTasks();
+            try {
+                pool.awaitIdle();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    // Deletes the outputs of a .java file in the tree under rootPath that no longer exists (in every format, and its
+    // pages and token cache, if any). Returns false if there weren't any.
+    boolean deleteOutputs (File inputFile, String rootPath, String outputPath) {
+        File outputFile = outputFileFor(inputFile, rootPath, outputPath);
+        if (outputFile.getPath().equals(inputFile.getPath()))
+            return false;   // (not under rootPath)
+        boolean deleted = false;
+        for (File file : new File[] { outputFile, new File(outputFile.getPath() + ".gz"),
+                TokenCache.cacheFile(outputFile), formatFile(outputFile, ".ansi"), formatFile(outputFile, ".json") })
+            deleted |= file.delete();
+        for (int k = 1; PagedHtmlWriter.pageFile(outputFile, k).delete(); ++k)
+            deleted = true;
+        return deleted;
+    }
+
+    // Deletes the output directory of a directory in the tree under rootPath that no longer exists, with everything
+    // in it. Returns false if there wasn't one. The output directory is dir's path relative to rootPath, resolved
+    // against outputPath, and nothing outside of outputPath (or outputPath itself, or dir) is ever deleted.
+    boolean deleteOutputDir (File dir, String rootPath, String outputPath) {
+        Path root = new File(rootPath).toPath().toAbsolutePath().normalize();
+        Path output = new File(outputPath).toPath().toAbsolutePath().normalize();
+        Path path = dir.toPath().toAbsolutePath().normalize();
+        if (!path.startsWith(root) || path.equals(root))
+            return false;   // (not under rootPath, or the root itself)
+        Path outputDir = output.resolve(root.relativize(path)).normalize();
+        if (!outputDir.startsWith(output) || outputDir.equals(output) || outputDir.equals(path))
+            return false;
+        return deleteTree(outputDir.toFile());
+    }
+
+    private static boolean deleteTree (File file) {
+        File[] children = Files.isSymbolicLink(file.toPath()) ? null : file.listFiles();
+        if (children != null) {
+            for (File child : children)
+                deleteTree(child);
+        }
+        return file.delete();
+    }
+
+    // Returns the css link used by files in the given directory. In compact mode (without an explicit css file), this
+    // is a relative link to the stylesheet shared by the whole output tree; otherwise it's just cssLink.
+    // relDir is the directory's path relative to the root of the tree (or archive).
+    String cssLinkFor (String relDir) {
+        if (!compactHtml || cssLink != null)
+            return cssLink;
+        StringBuilder sb = new StringBuilder();
+        for (String part : relDir.split("[/\\\\]")) {
+            if (!part.isEmpty())
+                sb.append("../");
+        }
+        return sb.append(SHARED_CSS_FILE).toString();
+    }
+
+    // Writes the default stylesheet once to the root of the output tree (used by compact mode)
+    void writeSharedCss (String outputPath) {
+        if (!compactHtml || cssLink != null)
+            return;
+        File outputDir = new File(outputPath);
+        makeOutputDir(outputDir);
+        stats.beginFileWrite();
+        try (BufferedWriter br = new BufferedWriter(new OutputStreamWriter(
+                openOutput(new File(outputDir, SHARED_CSS_FILE))))) {
+            br.write(Parser.defaultCss);
+        } catch (IOException e) {
+            System.err.printf("Error writing stylesheet to '%s'\n", outputPath);
+            e.printStackTrace();
+        }
+        stats.endFileWrite();
+    }
+
+    static final String USAGE = "usage: Htmlify [--compact] [--gzip | --gzip-only] [--gzip-level=<0-9>] [--pack] " +
+            "[--stream-threshold=<MB>] [--memory-budget=<MB>] [--threads=<n | auto>] [--batch-size=<KB>] [--largest-first] [--dedup] [--track-allocations] [--slow-files=<n>] [--slow-files-csv=<file>] [--file-timeout=<ms>] [--page-lines=<n>] [--token-cache] [--formats=<html,ansi,json>] [--watch] [--watch-debounce=<ms>] [--dictionary=<file>] <input dir | .jar | .zip> <output dir | pack file> [<css file>]";
+
+    // Parses the value of a --name=<int> option, exiting with an error if it isn't an integer in [min, max]
+    static int parseIntOption (String arg, int min, int max) {
+        String value = arg.substring(arg.indexOf('=') + 1);
+        try {
+            int v = Integer.parseInt(value);
+            if (v >= min && v <= max)
+                return v;
+        } catch (NumberFormatException e) {}
+        System.err.printf("invalid value for '%s' (expected an integer in [%d, %d])\n", arg, min, max);
+        System.exit(-1);
+        return 0;
+    }
+
     public static void main (String[] args) {
         String inputDir = null;
         String outputDir = null;
         String css = null;
-        if (args.length == 2) {
-            inputDir = args[0];
-            outputDir = args[1];
-        } else if (args.length == 3) {
-            inputDir = args[0];
-            outputDir = args[1];
-            css = args[2];
+        boolean compact = false;
+        boolean plain = true;
+        boolean gzip = false;
+        int gzipLevel = Deflater.DEFAULT_COMPRESSION;
+        boolean packOutput = false;
+        long streamThreshold = -1;
+        long memoryBudget = -1;
+        int threads = 0;
+        long batchBytes = -1;
+        boolean largestFirst = false;
+        boolean dedup = false;
+        boolean trackAllocations = false;
+        int slowFiles = 10;
+        long fileTimeout = 0;
+        int pageLines = 0;
+        boolean tokenCache = false;
+        String formats = "html";
+        boolean watch = false;
+        int watchDebounce = 100;
+        String slowFilesCsv = null;
+        String dictionaryFile = null;
+
+        List<String> positional = new ArrayList<>();
+        for (String arg : args) {
+            if (arg.equals("--compact")) {
+                compact = true;
+            } else if (arg.equals("--gzip")) {
+                gzip = true;
+            } else if (arg.equals("--gzip-only")) {
+                gzip = true;
+                plain = false;
+            } else if (arg.startsWith("--gzip-level=")) {
+                gzipLevel = parseIntOption(arg, 0, 9);
+            } else if (arg.equals("--pack")) {
+                packOutput = true;
+            } else if (arg.startsWith("--stream-threshold=")) {
+                streamThreshold = (long)parseIntOption(arg, 0, Integer.MAX_VALUE) << 20;
+            } else if (arg.equals("--threads=auto")) {
+                threads = 0;
+            } else if (arg.startsWith("--threads=")) {
+                threads = parseIntOption(arg, 1, 4096);
+            } else if (arg.startsWith("--batch-size=")) {
+                batchBytes = (long)parseIntOption(arg, 0, 1 << 20) << 10;
+            } else if (arg.startsWith("--file-timeout=")) {
+                fileTimeout = parseIntOption(arg, 0, Integer.MAX_VALUE) * 1000000L;
+            } else if (arg.startsWith("--page-lines=")) {
+                pageLines = parseIntOption(arg, 0, Integer.MAX_VALUE);
+            } else if (arg.startsWith("--slow-files=")) {
+                slowFiles = parseIntOption(arg, 0, 1 << 20);
+            } else if (arg.startsWith("--slow-files-csv=")) {
+                slowFilesCsv = arg.substring(arg.indexOf('=') + 1);
+            } else if (arg.equals("--track-allocations")) {
+                trackAllocations = true;
+            } else if (arg.startsWith("--formats=")) {
+                formats = arg.substring(arg.indexOf('=') + 1);
+            } else if (arg.equals("--watch")) {
+                watch = true;
+            } else if (arg.startsWith("--watch-debounce=")) {
+                watchDebounce = parseIntOption(arg, 0, 60000);
+            } else if (arg.equals("--token-cache")) {
+                tokenCache = true;
+            } else if (arg.startsWith("--dictionary=")) {
+                dictionaryFile = arg.substring(arg.indexOf('=') + 1);
+            } else if (arg.equals("--dedup")) {
+                dedup = true;
+            } else if (arg.equals("--largest-first")) {
+                largestFirst = true;
+            } else if (arg.startsWith("--memory-budget=")) {
+                memoryBudget = (long)parseIntOption(arg, 1, Integer.MAX_VALUE) << 20;
+            } else if (arg.startsWith("--")) {
+                System.err.printf("unknown option '%s'\n", arg);
+                System.err.println(USAGE);
+                System.exit(-1);
+            } else {
+                positional.add(arg);
+            }
+        }
+        if (positional.size() == 2) {
+            inputDir = positional.get(0);
+            outputDir = positional.get(1);
+        } else if (positional.size() == 3) {
+            inputDir = positional.get(0);
+            outputDir = positional.get(1);
+            css = positional.get(2);
         } else {
-            System.err.println("usage: Htmlify <input dir> <output dir> [<css file>]");
+            System.err.println(USAGE);
             System.exit(-1);
         }
         if (css != null && !css.endsWith(".css")) {
             System.err.printf("'%s' must be a css file", css);
             System.exit(-1);
         }
+        if (watch && (packOutput || isArchive(new File(inputDir)))) {
+            System.err.println("--watch needs an input directory and an output directory (not --pack)");
+            System.exit(-1);
+        }
 
         final Stats stats = USE_FAST_STATS ?
                 new FastStats() :
                 new TimedStats();
 
-        final Htmlify htmlify = new Htmlify(stats, css);
+        List<String> dictionary = null;
+        if (dictionaryFile != null) {
+            try {
+                dictionary = StringMatcher.readDictionary(new File(dictionaryFile));
+            } catch (IOException e) {
+                System.err.printf("Error reading dictionary '%s'\n", dictionaryFile);
+                e.printStackTrace();
+                System.exit(-1);
+            }
+        }
+
+        final Htmlify htmlify = new Htmlify(stats, css, threads, dictionary);
+        htmlify.compactHtml = compact;
+        htmlify.plainOutput = plain;
+        htmlify.gzipOutput = gzip;
+        htmlify.gzipLevel = gzipLevel;
+        if (streamThreshold >= 0)
+            htmlify.streamThreshold = streamThreshold;
+        if (batchBytes >= 0)
+            htmlify.batchBytes = batchBytes;
+        if (largestFirst && htmlify.pool != null)
+            htmlify.pool.setLargestFirst(true);     // run the most expensive tasks first (see CostQueue)
+        if (memoryBudget > 0 && htmlify.budget != null)
+            htmlify.budget = new MemoryBudget(memoryBudget);
+        if (htmlify.budget != null)
+            System.out.printf("Memory budget: %d MB\n", htmlify.budget.getBudget() >> 20);
+        htmlify.fileTimeout = fileTimeout;
+        htmlify.pageLines = pageLines;
+        htmlify.htmlOutput = htmlify.ansiOutput = htmlify.jsonOutput = false;
+        for (String format : formats.split(",")) {
+            if (format.equals("html")) {
+                htmlify.htmlOutput = true;
+            } else if (format.equals("ansi")) {
+                htmlify.ansiOutput = true;
+            } else if (format.equals("json")) {
+                htmlify.jsonOutput = true;
+            } else {
+                System.err.printf("unknown format '%s' (expected html, ansi or json)\n", format);
+                System.exit(-1);
+            }
+        }
+        if (slowFiles > 0)
+            htmlify.slowFiles = new SlowFileReport(slowFiles);
+        if (trackAllocations) {
+            if (!AllocationStats.isSupported())
+                System.err.println("--track-allocations: per-thread allocation counters aren't supported by this jvm");
+            if (stats instanceof TimedStats)
+                ((TimedStats)stats).allocations = new AllocationStats();
+            if (htmlify.pool != null)
+                htmlify.pool.setTrackAllocations(true);
+        }
+        if (dedup && packOutput) {
+            System.err.println("--dedup has no effect with --pack");
+        } else if (dedup && watch) {
+            // (a rewritten output would also change every output linked to it)
+            System.err.println("--dedup has no effect with --watch");
+        } else if (dedup && (pageLines > 0 || !formats.equals("html"))) {
+            // (only whole html outputs are linked)
+            System.err.println("--dedup has no effect with --page-lines or --formats");
+        } else if (dedup) {
+            List<String> suffixes = new ArrayList<>();
+            if (plain)
+                suffixes.add("");
+            if (gzip)
+                suffixes.add(".gz");
+            htmlify.dedup = new DedupIndex<>(suffixes.toArray(new String[0]));
+        }
+        if (tokenCache && packOutput)
+            System.err.println("--token-cache has no effect with --pack");
+        else if (tokenCache)
+            htmlify.tokenCache = new TokenCache(htmlify.parser);
+        if (packOutput) {
+            try {
+                htmlify.openPack(new File(outputDir), outputDir);
+            } catch (IOException e) {
+                System.err.printf("Error creating pack file '%s'\n", outputDir);
+                e.printStackTrace();
+                System.exit(-1);
+            }
+        }
 
 //        long startTime = System.nanoTime();
 
         stats.startHtmlify();
-        htmlify.processDir(new File(inputDir), inputDir, outputDir);
-        Stats mainThreadStats = new ThreadStats();
+        htmlify.writeSharedCss(outputDir);
+        File input = new File(inputDir);
+        if (isArchive(input))
+            htmlify.processArchive(input, outputDir);
+        else
+            htmlify.processDir(input, inputDir, outputDir);
+        if (htmlify.dedup != null)
+            htmlify.dedup.walkDone();
+        ThreadStats mainThreadStats = new ThreadStats();
+        if (trackAllocations)
+            mainThreadStats.allocations = new AllocationStats();
         if (USE_MULTITHREADING) {
+            htmlify.flushBatch();
+            htmlify.pool.startTasks();
             // If tasks still aren't done, use this thread to augment the worker threads
-            while (!htmlify.pool.done()) {
-                try {
-                    FileProcessTask task = htmlify.pool.getTask();
-                    task.setInstanceVars(htmlify.parser, mainThreadStats);
-                    task.run();
-                } catch (InterruptedException ex) {
-                    Thread.interrupted();
+            FileProcessTask task;
+            long lastTaskEnd = 0;
+            Parser mainThreadParser = new Parser(htmlify.parser, mainThreadStats);
+            while ((task = htmlify.pool.getTask()) != null) {
+                task.setInstanceVars(mainThreadParser, mainThreadStats, htmlify.deflaters);
+                long start = System.nanoTime();
+                task.run();
+                lastTaskEnd = System.nanoTime();
+                htmlify.pool.taskDone(task, lastTaskEnd - start);
+            }
+            try {
+                // wait for the workers' last tasks before stopping them (stop() interrupts them, which would abort
+                // any io they're still doing)
+                htmlify.pool.awaitIdle();
+                if (!watch) {           // (in watch mode, the workers are kept for the updates)
+                    htmlify.pool.stop();
+                    htmlify.pool.join();
                 }
+            } catch (InterruptedException ex) {
+                Thread.interrupted();
             }
-            htmlify.pool.stop();
+            htmlify.pool.recordIdleTails(stats, lastTaskEnd);
+            htmlify.closeArchives();
         }
+        htmlify.closePack();
         stats.endHtmlify();
 
 //        double elapsedTime = (double)(System.nanoTime() - startTime) * 1e-6;
@@ -349,6 +1438,21 @@ public class Htmlify {
             System.out.println(stats.getStats());
         else
             System.out.println(stats.getAdjustedStats());
+        if (htmlify.dedup != null)
+            System.out.println(htmlify.dedup.getStats());
+        if (htmlify.tokenCache != null)
+            System.out.println(htmlify.tokenCache.getStats());
+        if (htmlify.slowFiles != null) {
+            System.out.println(htmlify.slowFiles.getReport());
+            if (slowFilesCsv != null) {
+                try {
+                    htmlify.slowFiles.writeCsv(new File(slowFilesCsv));
+                } catch (IOException e) {
+                    System.err.printf("Error writing slow file report to '%s'\n", slowFilesCsv);
+                    e.printStackTrace();
+                }
+            }
+        }
 
 //        if (USE_MULTITHREADING && !USE_FAST_STATS) {
 //            System.out.println("Warning: profiler information is unpredictable when used with multithreading");
@@ -362,7 +1466,37 @@ public class Htmlify {
             }
             System.out.println("Main thread stats: ");
             System.out.println(mainThreadStats.getStats());
+            if (fileTimeout > 0) {
+                int timedOut = mainThreadStats.getDeadlinesExceeded();
+                for (ThreadStats threadStats : htmlify.pool.getStats())
+                    timedOut += threadStats.getDeadlinesExceeded();
+                System.out.printf("Timed out: %d files took more than %d ms and were written as plain text\n",
+                        timedOut, fileTimeout / 1000000);
+            }
+            if (trackAllocations) {
+                AllocationStats total = new AllocationStats();
+                for (ThreadStats threadStats : htmlify.pool.getStats())
+                    total.add(threadStats.allocations);
+                total.add(mainThreadStats.allocations);
+                System.out.print("All threads: ");
+                System.out.println(total.getStats());
+            }
             System.out.println(stats.getStats());
+            System.out.println(htmlify.budget.getStats());
+            System.out.println(htmlify.getBatchStats());
+            if (htmlify.pool.controller != null)
+                System.out.println(htmlify.pool.controller.getSummary());
+        }
+
+        if (watch) {
+            try {
+                new SourceWatcher(htmlify, inputDir, outputDir, watchDebounce).run();
+            } catch (IOException e) {
+                System.err.printf("Error watching '%s'\n", inputDir);
+                e.printStackTrace();
+            }
+            if (USE_MULTITHREADING)
+                htmlify.pool.stop();
         }
     }
 }
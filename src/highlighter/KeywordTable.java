@@ -0,0 +1,61 @@
+package highlighter;
+
+/**
+ * Perfect hash table over a fixed set of keywords.
+ *
+ * Used by Parser to classify a whole identifier run as keyword / not keyword with a single hash + compare, instead of
+ * walking the matcher trie once per character. The hash multiplier and table size are picked at construction time so
+ * that no two keywords share a slot, so a lookup never probes more than one entry.
+ */
+public class KeywordTable {
+    private final String[] slots;
+    private final int multiplier;
+    private final int shift;
+
+    public KeywordTable (String[] keywords) {
+        for (int bits = log2ceil(Math.max(keywords.length, 1)) + 1; ; ++bits) {
+            for (int m = 31; m < 1 << 16; m += 2) {
+                String[] table = tryBuild(keywords, m, bits);
+                if (table != null) {
+                    this.slots = table;
+                    this.multiplier = m;
+                    this.shift = 32 - bits;
+                    return;
+                }
+            }
+        }
+    }
+
+    private static int log2ceil (int n) {
+        return 32 - Integer.numberOfLeadingZeros(n - 1);
+    }
+
+    // Returns a collision-free table for the given multiplier / table size, or null if two keywords collide
+    private static String[] tryBuild (String[] keywords, int multiplier, int bits) {
+        String[] table = new String[1 << bits];
+        for (String keyword : keywords) {
+            int slot = slot(hash(keyword, 0, keyword.length(), multiplier), 32 - bits);
+            if (table[slot] != null && !table[slot].equals(keyword))
+                return null;
+            table[slot] = keyword;
+        }
+        return table;
+    }
+
+    private static int hash (String s, int begin, int end, int multiplier) {
+        int h = end - begin;
+        for (int i = begin; i < end; ++i)
+            h = h * multiplier + s.charAt(i);
+        return h;
+    }
+
+    private static int slot (int h, int shift) {
+        return (h * 0x9e3779b9) >>> shift;
+    }
+
+    // Returns true iff s[begin, end) is one of the keywords
+    public boolean contains (String s, int begin, int end) {
+        String keyword = slots[slot(hash(s, begin, end, multiplier), shift)];
+        return keyword != null && keyword.length() == end - begin && s.regionMatches(begin, keyword, 0, end - begin);
+    }
+}
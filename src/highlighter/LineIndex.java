@@ -0,0 +1,173 @@
+package highlighter;
+
+import java.io.*;
+
+/**
+ * Line index for a source file, used to render a range of its lines on their own (see Parser.makeHtml(String,
+ * LineIndex, int, int, String, boolean)) without re-lexing the whole file.
+ *
+ * For each line it records where the line starts, and the lexer state at that point as a checkpoint: the last
+ * position at or before the line start where the parser's main loop started an iteration (ie. was between tokens).
+ * Parsing from a checkpoint reproduces the tokens of the full parse from there on, including a comment or string
+ * that started on an earlier line, so a line range only needs to be lexed from its first line's checkpoint. For most
+ * lines the checkpoint is the newline that ends the previous line. No lexer state has to be stored with a checkpoint:
+ * the main loop carries none from one iteration to the next (a token is always lexed to its end within one), so every
+ * checkpoint restarts the parser in its initial state.
+ *
+ * Checkpoints are recorded while parsing (Parser.parse(String, LineIndex)). The whole index is one packed int array
+ * (see toArray), 2 ints per line, so it can be cached next to the source (write / read). It's only valid for the
+ * source it was built from, parsed with the same rules. fromArray and read check that the index is well formed (line
+ * starts increasing from 0 within the source, checkpoints increasing and at or before their line's start), but not
+ * that it matches a source.
+ */
+public class LineIndex {
+    // Packed layout: [source length, line count, then for each line: start offset, checkpoint offset]
+    static final int HEADER = 2;
+    static final int MAGIC = 0x4c494458;    // "LIDX", for write / read
+
+    private final int[] data;
+    private final int lines;
+
+    // parse state (see recordLoopTop)
+    private int cursor = 0;         // first line whose checkpoint hasn't been recorded yet
+    private int lastTop = 0;        // position of the last loop iteration seen
+
+    // Creates an index of source's line starts. Its checkpoints are filled in by Parser.parse(String, LineIndex).
+    public LineIndex (String source) {
+        int n = source.length();
+        int count = 1;
+        for (int i = source.indexOf('\n'); i >= 0; i = source.indexOf('\n', i + 1))
+            ++count;
+        lines = count;
+        data = new int[HEADER + 2 * count];
+        data[0] = n;
+        data[1] = count;
+        data[HEADER] = 0;
+        data[HEADER + 1] = -1;
+        int k = 1;
+        for (int i = source.indexOf('\n'); i >= 0; i = source.indexOf('\n', i + 1), ++k) {
+            data[HEADER + 2 * k] = i + 1;
+            data[HEADER + 2 * k + 1] = -1;
+        }
+    }
+
+    private LineIndex (int[] data) {
+        this.data = data;
+        this.lines = data[1];
+        this.cursor = lines;
+    }
+
+    // Returns an index from the packed array returned by toArray()
+    public static LineIndex fromArray (int[] data) {
+        if (data.length < HEADER || data[1] < 1 || data.length != HEADER + 2 * data[1] || !isWellFormed(data))
+            throw new IllegalArgumentException("malformed line index");
+        return new LineIndex(data.clone());
+    }
+
+    // Checks the offsets of a packed index: line starts strictly increasing from 0 and within the source, and each
+    // checkpoint at or before its line's start and no earlier than the previous one. Checkpoints may be missing (-1)
+    // only from some line on (ie. the source hasn't been parsed).
+    static boolean isWellFormed (int[] data) {
+        int length = data[0];
+        int count = data[1];
+        if (length < 0 || count > length + 1L || data[HEADER] != 0)
+            return false;
+        int lastStart = -1;
+        int lastCheckpoint = 0;
+        boolean missing = false;
+        for (int k = 0; k < count; ++k) {
+            int start = data[HEADER + 2 * k];
+            int checkpoint = data[HEADER + 2 * k + 1];
+            if (start <= lastStart || start > length)
+                return false;
+            if (checkpoint == -1) {
+                missing = true;
+            } else if (missing || checkpoint < lastCheckpoint || checkpoint > start) {
+                return false;
+            } else {
+                lastCheckpoint = checkpoint;
+            }
+            lastStart = start;
+        }
+        return true;
+    }
+
+    // Returns the packed index (see the layout above)
+    public int[] toArray () {
+        return data.clone();
+    }
+
+    public int sourceLength () {
+        return data[0];
+    }
+
+    public int lineCount () {
+        return lines;
+    }
+
+    // Offset of the first char of a line (0-based); lineStart(lineCount()) is the end of the source
+    public int lineStart (int line) {
+        return line < lines ? data[HEADER + 2 * line] : data[0];
+    }
+
+    // Position the parser can restart at to reproduce the tokens of a line, or -1 if the source hasn't been parsed
+    public int checkpoint (int line) {
+        return line < lines ? data[HEADER + 2 * line + 1] : data[HEADER + 2 * lines - 1];
+    }
+
+    // True once every line has a checkpoint
+    public boolean isComplete () {
+        return data[HEADER + 2 * lines - 1] >= 0;
+    }
+
+    // Called by the parser before it parses the source from the start
+    void reset () {
+        cursor = 0;
+        lastTop = 0;
+    }
+
+    // Called by the parser at the top of each iteration of its main loop, at position pos: this is the checkpoint for
+    // every line starting after the previous iteration and up to pos
+    void recordLoopTop (int pos) {
+        while (cursor < lines && data[HEADER + 2 * cursor] <= pos) {
+            int start = data[HEADER + 2 * cursor];
+            data[HEADER + 2 * cursor + 1] = start == pos ? pos : lastTop;
+            ++cursor;
+        }
+        lastTop = pos;
+    }
+
+    // Called by the parser once it's done: the rest of the lines are inside the last iteration's token
+    void finish () {
+        for (; cursor < lines; ++cursor)
+            data[HEADER + 2 * cursor + 1] = lastTop;
+    }
+
+    public void write (File file) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            out.writeInt(MAGIC);
+            for (int value : data)
+                out.writeInt(value);
+        }
+    }
+
+    public static LineIndex read (File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC)
+                throw new IOException("not a line index: " + file);
+            int length = in.readInt();
+            int count = in.readInt();
+            // (a source has at most one line per char, plus one)
+            if (length < 0 || count < 1 || count > length + 1L || count > (Integer.MAX_VALUE - HEADER) / 2)
+                throw new IOException("malformed line index: " + file);
+            int[] data = new int[HEADER + 2 * count];
+            data[0] = length;
+            data[1] = count;
+            for (int i = HEADER; i < data.length; ++i)
+                data[i] = in.readInt();
+            if (!isWellFormed(data))
+                throw new IOException("malformed line index: " + file);
+            return new LineIndex(data);
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package highlighter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Aho-Corasick automaton built from a StringMatcher trie, used to implement Matcher.matchAll().
+ *
+ * StringMatcher.match(s, i) walks the trie from position i as far as it can and returns the tags of the node it stopped
+ * at. matchAll computes that same result for every position of the input in a single left-to-right pass: the
+ * automaton's state after reading s[0..k) is the longest suffix of the input that is a path in the trie, and its
+ * failure chain contains every shorter one, ie. every start position whose trie walk is still in progress. When the
+ * next char can't extend one of those walks, the walk ends there, and its (tags, length) is written out for its start.
+ *
+ * Nodes are stored in flat arrays (indexed by node id, root == 0), with the same child lists as the trie: either a
+ * dense [first, first + count) range, or (for sparse trie nodes) the sorted child chars, in keys.
+ */
+class MatchAutomaton {
+    private final char[] first;     // first child char of each node
+    private final int[] childBase;  // offset of each node's child range in children, or -1 if it has no children
+    private final int[] childCount; // length of each node's child range
+    private final boolean[] sparse; // the node's child chars are in keys (sorted), rather than a dense range
+    private final int[] children;   // child node ids, or -1
+    private final char[] keys;      // (sparse nodes) the char of each child in children
+    private final int[] tags;
+    private final int[] depth;
+    private final int[] fail;       // failure link: node for the longest proper suffix that's also a trie path
+
+    // Returns an automaton for the given trie, or null if its tags or depth don't fit in the packed matchAll results
+    static MatchAutomaton build (StringMatcher.Trie root) {
+        MatchAutomaton automaton = new MatchAutomaton(root);
+        for (int i = 0; i < automaton.tags.length; ++i) {
+            if ((automaton.tags[i] & ~Matcher.MATCH_TAGS_MASK) != 0 || automaton.depth[i] > Matcher.MATCH_MAX_LENGTH)
+                return null;
+        }
+        return automaton;
+    }
+
+    private MatchAutomaton (StringMatcher.Trie root) {
+        // number the nodes in breadth-first order (so every node's failure target is numbered before it)
+        ArrayList<StringMatcher.Trie> nodes = new ArrayList<>();
+        int slots = 0;
+        nodes.add(root);
+        for (int i = 0; i < nodes.size(); ++i) {
+            StringMatcher.Trie node = nodes.get(i);
+            if (node.next == null)
+                continue;
+            slots += node.next.length;
+            for (StringMatcher.Trie child : node.next) {
+                if (child != null)
+                    nodes.add(child);
+            }
+        }
+        int n = nodes.size();
+        first = new char[n];
+        childBase = new int[n];
+        childCount = new int[n];
+        sparse = new boolean[n];
+        children = new int[slots];
+        keys = new char[slots];
+        tags = new int[n];
+        depth = new int[n];
+        fail = new int[n];
+
+        // (children are numbered in the same order as they were added to nodes)
+        for (int i = 0, base = 0, nextId = 1; i < n; ++i) {
+            StringMatcher.Trie node = nodes.get(i);
+            first[i] = node.first;
+            tags[i] = node.tags;
+            if (node.next == null) {
+                childBase[i] = -1;
+                continue;
+            }
+            childBase[i] = base;
+            childCount[i] = node.next.length;
+            if (node.keys != null) {
+                sparse[i] = true;
+                System.arraycopy(node.keys, 0, keys, base, node.keys.length);
+            }
+            for (int j = 0; j < node.next.length; ++j) {
+                StringMatcher.Trie child = node.next[j];
+                if (child == null) {
+                    children[base + j] = -1;
+                } else {
+                    int id = nextId++;
+                    children[base + j] = id;
+                    depth[id] = depth[i] + 1;
+                }
+            }
+            base += node.next.length;
+        }
+
+        // failure links (standard Aho-Corasick construction, in bfs order)
+        for (int u = 0; u < n; ++u) {
+            if (childBase[u] < 0)
+                continue;
+            for (int j = 0; j < childCount[u]; ++j) {
+                int v = children[childBase[u] + j];
+                if (v < 0)
+                    continue;
+                if (u == 0) {
+                    fail[v] = 0;
+                    continue;
+                }
+                char c = sparse[u] ? keys[childBase[u] + j] : (char)(first[u] + j);
+                int f = fail[u];
+                int w;
+                while ((w = child(f, c)) < 0 && f != 0)
+                    f = fail[f];
+                fail[v] = w >= 0 ? w : 0;
+            }
+        }
+    }
+
+    private int child (int node, char c) {
+        int base = childBase[node];
+        if (base < 0)
+            return -1;
+        if (sparse[node]) {
+            int i = Arrays.binarySearch(keys, base, base + childCount[node], c);
+            return i >= 0 ? children[i] : -1;
+        }
+        int i = c - first[node];
+        if (i < 0 || i >= childCount[node])
+            return -1;
+        return children[base + i];
+    }
+
+    // See Matcher.matchAll
+    void matchAll (String s, int[] out) {
+        int state = 0;
+        for (int k = 0, n = s.length(); k < n; ++k) {
+            char c = s.charAt(k);
+            // every walk that can't be extended by c ends here; the first one that can becomes the next state
+            int next = -1;
+            for (int u = state; ; u = fail[u]) {
+                int v = child(u, c);
+                if (v < 0)
+                    out[k - depth[u]] = Matcher.packMatch(tags[u], depth[u]);
+                else if (next < 0)
+                    next = v;
+                if (u == 0)
+                    break;
+            }
+            state = next >= 0 ? next : 0;
+        }
+        // end of input: all remaining walks end here
+        for (int u = state, n = s.length(); u != 0; u = fail[u])
+            out[n - depth[u]] = Matcher.packMatch(tags[u], depth[u]);
+    }
+
+    // Returns the number of nodes in the automaton
+    int size () {
+        return tags.length;
+    }
+
+    // Estimated heap footprint of the automaton, in bytes
+    long footprint () {
+        int n = tags.length;
+        return StringMatcher.arrayBytes(n, 2) + 5 * StringMatcher.arrayBytes(n, 4) + StringMatcher.arrayBytes(n, 1) +
+                StringMatcher.arrayBytes(children.length, 4) + StringMatcher.arrayBytes(keys.length, 2);
+    }
+}
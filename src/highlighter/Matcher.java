@@ -4,6 +4,11 @@ package highlighter;
  * Created by Seiji on 4/11/15.
  */
 public interface Matcher {
+    // matchAll() results pack (tags, length) into a single int: tags in the low 16 bits, length in the high 16 bits
+    int MATCH_LENGTH_SHIFT = 16;
+    int MATCH_TAGS_MASK    = (1 << MATCH_LENGTH_SHIFT) - 1;
+    int MATCH_MAX_LENGTH   = (1 << (32 - MATCH_LENGTH_SHIFT)) - 1;
+
     Matcher cloneWith (Stats stats);
     void add (String s, int tags);
     void add (String[] s, int tags);
@@ -12,4 +17,18 @@ public interface Matcher {
     int match (String s, int i);
     int matchedChars ();
     int end ();
+
+    // Classifies the whole input in one pass: for every position i in s, out[i] is set to the packed (tags, length)
+    // that match(s, i) / matchedChars() would have returned. out must have at least s.length() elements.
+    void matchAll (String s, int[] out);
+
+    static int packMatch (int tags, int length) {
+        return (length << MATCH_LENGTH_SHIFT) | tags;
+    }
+    static int matchTags (int packed) {
+        return packed & MATCH_TAGS_MASK;
+    }
+    static int matchLength (int packed) {
+        return packed >>> MATCH_LENGTH_SHIFT;
+    }
 }
@@ -0,0 +1,156 @@
+package highlighter;
+
+import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Reads and writes compiled StringMatcher tries as compact binary snapshots, so that one-shot runs (eg. Parser.main
+ * called from a build script) can skip building the trie entirely.
+ *
+ * Each snapshot stores the fingerprint of the rule set it was built from; load() returns null for a snapshot built from
+ * different rules (or a different snapshot format), so a stale snapshot is never used.
+ *
+ * Snapshot layout (big-endian):
+ *    int MAGIC, int VERSION, long fingerprint, int node count
+ *    nodes, in post-order (children before their parent; the root is last). For each node:
+ *       char first, int tags, int count, int next length (-1 if the node has no children),
+ *       then if it has children: byte sparse (1 if the node is sparse, see StringMatcher.Trie), the char of each child
+ *       if it's sparse, and one int per next slot: the index of the child node, or -1
+ *
+ * Snapshots are enabled by setting the highlighter.snapshot system property to a file path (or by calling
+ * StringMatcher.setSnapshotFile).
+ */
+public class MatcherSnapshot {
+    static final int MAGIC   = 0x484c4d53;  // "HLMS"
+    static final int VERSION = 2;
+    static final String SNAPSHOT_PROPERTY = "highlighter.snapshot";
+
+    static final long FINGERPRINT_SEED  = 0xcbf29ce484222325L ^ VERSION;   // FNV-1a offset basis
+    static final long FINGERPRINT_PRIME = 0x100000001b3L;
+
+    // Returns the snapshot file set via the highlighter.snapshot system property (or null if not set)
+    static File defaultSnapshotFile () {
+        String path = System.getProperty(SNAPSHOT_PROPERTY);
+        return path != null ? new File(path) : null;
+    }
+
+    // Updates a rule set fingerprint (64-bit FNV-1a) with a single rule
+    static long fingerprint (long h, String s, int tag) {
+        for (int i = 0, n = s.length(); i < n; ++i) {
+            char c = s.charAt(i);
+            h = (h ^ (c & 0xff)) * FINGERPRINT_PRIME;
+            h = (h ^ (c >>> 8)) * FINGERPRINT_PRIME;
+        }
+        h = (h ^ s.length()) * FINGERPRINT_PRIME;    // rule separator
+        for (int i = 0; i < 32; i += 8)
+            h = (h ^ ((tag >>> i) & 0xff)) * FINGERPRINT_PRIME;
+        return h;
+    }
+
+    // Loads a trie from the given snapshot file. Returns null if the file doesn't exist, is corrupt, or wasn't built
+    // from a rule set with the given fingerprint.
+    static StringMatcher.Trie load (File file, long fingerprint) {
+        if (!file.isFile())
+            return null;
+        try {
+            ByteBuffer buf = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+            if (buf.getInt() != MAGIC || buf.getInt() != VERSION || buf.getLong() != fingerprint)
+                return null;
+            int n = buf.getInt();
+            if (n <= 0)
+                return null;
+            StringMatcher.Trie[] nodes = new StringMatcher.Trie[n];
+            for (int i = 0; i < n; ++i) {
+                char first = buf.getChar();
+                int tags = buf.getInt();
+                int count = buf.getInt();
+                int length = buf.getInt();
+                StringMatcher.Trie[] next = null;
+                char[] keys = null;
+                if (length >= 0) {
+                    if (buf.get() != 0) {
+                        keys = new char[length];
+                        for (int j = 0; j < length; ++j) {
+                            keys[j] = buf.getChar();
+                            if (j > 0 && keys[j] <= keys[j - 1])
+                                return null;    // (must be sorted, for binary search)
+                        }
+                    }
+                    next = new StringMatcher.Trie[length];
+                    for (int j = 0; j < length; ++j) {
+                        int child = buf.getInt();
+                        if (child >= i)
+                            return null;    // children must precede their parent
+                        if (child >= 0)
+                            next[j] = nodes[child];
+                    }
+                }
+                nodes[i] = new StringMatcher.Trie(first, keys, next, count, tags);
+            }
+            return buf.hasRemaining() ? null : nodes[n - 1];
+        } catch (IOException | BufferUnderflowException e) {
+            return null;
+        }
+    }
+
+    // Writes a trie to the given snapshot file. The file is replaced atomically, so concurrent readers never see a
+    // partially written snapshot. Failures are reported but otherwise ignored (the snapshot is just an optimization).
+    static void save (File file, StringMatcher.Trie root, long fingerprint) {
+        // number the nodes in post-order (without recursion, so deep tries can't overflow the stack)
+        Map<StringMatcher.Trie, Integer> ids = new IdentityHashMap<>();
+        ArrayDeque<StringMatcher.Trie> order = new ArrayDeque<>();
+        ArrayDeque<StringMatcher.Trie> stack = new ArrayDeque<>();
+        stack.push(root);
+        while (!stack.isEmpty()) {
+            StringMatcher.Trie node = stack.pop();
+            order.push(node);   // reversed pre-order (children visited right to left) == post-order
+            if (node.next != null) {
+                for (StringMatcher.Trie child : node.next) {
+                    if (child != null)
+                        stack.push(child);
+                }
+            }
+        }
+        File tmp = new File(file.getPath() + ".tmp");
+        try {
+            File parent = file.getAbsoluteFile().getParentFile();
+            if (parent != null && !parent.exists())
+                parent.mkdirs();
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeLong(fingerprint);
+                out.writeInt(order.size());
+                for (StringMatcher.Trie node : order) {
+                    ids.put(node, ids.size());
+                    out.writeChar(node.first);
+                    out.writeInt(node.tags);
+                    out.writeInt(node.count);
+                    if (node.next == null) {
+                        out.writeInt(-1);
+                    } else {
+                        out.writeInt(node.next.length);
+                        out.writeByte(node.keys != null ? 1 : 0);
+                        if (node.keys != null) {
+                            for (char c : node.keys)
+                                out.writeChar(c);
+                        }
+                        for (StringMatcher.Trie child : node.next)
+                            out.writeInt(child != null ? ids.get(child) : -1);
+                    }
+                }
+            }
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.err.printf("Error writing matcher snapshot '%s'\n", file);
+            e.printStackTrace();
+            tmp.delete();
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package highlighter;
+
+/**
+ * Admission control for Htmlify's worker pool: bounds the estimated heap held by in-flight tasks.
+ *
+ * Each task needs its source string, token list and html string in memory at the same time, so a task's footprint is
+ * estimated as its input size times an expansion factor, which is measured from the files processed so far (see
+ * recordExpansion). acquire() blocks the submitting thread while the reservations of queued and running tasks would
+ * exceed the budget; a task larger than the whole budget waits until nothing else is in flight and then runs alone
+ * (nothing else is admitted until it's done).
+ *
+ * Thread-safe.
+ */
+public class MemoryBudget {
+    // Expansion factor used until a file has been measured: source string (2 bytes / char), token substrings (another
+    // 2 bytes / char plus ~64 bytes per token object) and html (~3x the source, 2 bytes / char)
+    static final double DEFAULT_EXPANSION = 16.0;
+    static final long TOKEN_BYTES = 64;             // per Parser.Token: the object, its substring and list slot
+    static final double EXPANSION_SMOOTHING = 0.1;  // weight of each new measurement in the running average
+    static final long MIN_RESERVATION = 4 << 10;    // per-task overhead (task, buffers, output streams etc)
+
+    private final long budget;
+    private long inFlight = 0;
+    private double expansion = DEFAULT_EXPANSION;
+    private boolean measured = false;
+
+    // stats
+    private long peakInFlight = 0;
+    private long waitNanos = 0;
+    private int waits = 0;
+    private int oversized = 0;
+
+    public MemoryBudget (long budget) {
+        if (budget <= 0)
+            throw new IllegalArgumentException("memory budget must be positive");
+        this.budget = budget;
+    }
+
+    // Default budget: half of the maximum heap size (the rest is left for the parsers, pools and gc headroom)
+    public static long defaultBudget () {
+        return Runtime.getRuntime().maxMemory() / 2;
+    }
+
+    public long getBudget () {
+        return budget;
+    }
+
+    // Returns the estimated peak heap use of processing an input of the given size
+    public synchronized long estimate (long inputBytes) {
+        return MIN_RESERVATION + (long)(Math.max(inputBytes, 0) * expansion);
+    }
+
+    // Reserves bytes for a task, blocking until they fit in the budget (or, if they don't fit at all, until nothing
+    // else is in flight). Returns the number of bytes reserved, which must be passed to release() when done.
+    public synchronized long acquire (long bytes) throws InterruptedException {
+        if (inFlight > 0 && inFlight + bytes > budget) {
+            long start = System.nanoTime();
+            ++waits;
+            while (inFlight > 0 && inFlight + bytes > budget)
+                wait();
+            waitNanos += System.nanoTime() - start;
+        }
+        if (bytes > budget)
+            ++oversized;
+        inFlight += bytes;
+        peakInFlight = Math.max(peakInFlight, inFlight);
+        return bytes;
+    }
+
+    // Releases bytes reserved by acquire()
+    public synchronized void release (long bytes) {
+        inFlight -= bytes;
+        assert(inFlight >= 0);
+        notifyAll();
+    }
+
+    // Updates the expansion factor with a measurement from a finished task: heapBytes is the (approximate) memory it
+    // held at its peak, for an input of inputBytes
+    public synchronized void recordExpansion (long inputBytes, long heapBytes) {
+        if (inputBytes <= 0)
+            return;
+        double sample = (double)heapBytes / inputBytes;
+        expansion = measured ? expansion + (sample - expansion) * EXPANSION_SMOOTHING : sample;
+        measured = true;
+    }
+
+    public synchronized double getExpansion () {
+        return expansion;
+    }
+
+    public synchronized String getStats () {
+        return String.format("Memory budget: %.1f MB, peak in flight %.1f MB, expansion %.1fx, " +
+                        "%d waits (%.2f ms), %d oversized files",
+                budget / 1048576.0, peakInFlight / 1048576.0, expansion, waits, waitNanos * 1e-6, oversized);
+    }
+}
@@ -83,6 +83,12 @@ public class NaiveMatcher implements Matcher {
         }
     }
 
+    @Override
+    public void matchAll(String s, int[] out) {
+        for (int i = 0, n = s.length(); i < n; ++i)
+            out[i] = Matcher.packMatch(match(s, i), matched);
+    }
+
     @Override
     public int matchedChars() {
         return matched;
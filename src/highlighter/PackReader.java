@@ -0,0 +1,116 @@
+package highlighter;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Reads entries from a pack file written by PackWriter.
+ *
+ * The index is loaded once when the pack is opened; each lookup is then a single hash lookup plus one positional read
+ * of the entry's bytes. Positional reads don't move a shared file pointer, so one PackReader can serve concurrent
+ * readers.
+ *
+ * Usage:
+ *    PackReader <pack file>            lists all entries
+ *    PackReader <pack file> <path>     writes a single entry to stdout
+ */
+public class PackReader implements Closeable {
+    private final FileChannel channel;
+    private final Map<String, PackWriter.Entry> index = new HashMap<>();
+
+    public PackReader (File packFile) throws IOException {
+        channel = FileChannel.open(packFile.toPath(), StandardOpenOption.READ);
+        long size = channel.size();
+        if (size < PackWriter.HEADER_SIZE + PackWriter.FOOTER_SIZE)
+            throw fail(packFile, "file too small");
+
+        ByteBuffer header = readFully(0, PackWriter.HEADER_SIZE);
+        if (header.getInt() != PackWriter.MAGIC || header.getInt() != PackWriter.VERSION)
+            throw fail(packFile, "bad header");
+
+        ByteBuffer footer = readFully(size - PackWriter.FOOTER_SIZE, PackWriter.FOOTER_SIZE);
+        long indexOffset = footer.getLong();
+        if (footer.getInt() != PackWriter.MAGIC || indexOffset < PackWriter.HEADER_SIZE || indexOffset > size)
+            throw fail(packFile, "bad footer");
+
+        ByteBuffer indexBytes = readFully(indexOffset, (int)(size - PackWriter.FOOTER_SIZE - indexOffset));
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+                indexBytes.array(), 0, indexBytes.limit()))) {
+            for (int i = 0, n = in.readInt(); i < n; ++i) {
+                String path = in.readUTF();
+                long offset = in.readLong();
+                int length = in.readInt();
+                index.put(path, new PackWriter.Entry(path, offset, length));
+            }
+        }
+    }
+
+    private IOException fail (File packFile, String reason) throws IOException {
+        channel.close();
+        return new IOException(String.format("'%s' is not a valid pack file (%s)", packFile, reason));
+    }
+
+    private ByteBuffer readFully (long position, int length) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(length);
+        while (buf.hasRemaining()) {
+            int n = channel.read(buf, position + buf.position());
+            if (n < 0)
+                throw new EOFException();
+        }
+        buf.flip();
+        return buf;
+    }
+
+    // Returns the set of entry paths in this pack
+    public Set<String> paths () {
+        return Collections.unmodifiableSet(index.keySet());
+    }
+
+    public boolean contains (String path) {
+        return index.containsKey(path);
+    }
+
+    // Returns the contents of the given entry, or null if the pack doesn't contain it
+    public byte[] read (String path) throws IOException {
+        PackWriter.Entry entry = index.get(path);
+        if (entry == null)
+            return null;
+        return readFully(entry.offset, entry.length).array();
+    }
+
+    @Override
+    public void close () throws IOException {
+        channel.close();
+    }
+
+    public static void main (String[] args) {
+        if (args.length != 1 && args.length != 2) {
+            System.err.println("usage: PackReader <pack file> [<path>]");
+            System.exit(-1);
+        }
+        try (PackReader pack = new PackReader(new File(args[0]))) {
+            if (args.length == 1) {
+                for (String path : pack.paths())
+                    System.out.println(path);
+            } else {
+                byte[] data = pack.read(args[1]);
+                if (data == null) {
+                    System.err.printf("'%s' not found in '%s'\n", args[1], args[0]);
+                    System.exit(-1);
+                }
+                System.out.write(data);
+                System.out.flush();
+            }
+        } catch (IOException e) {
+            System.err.printf("Error reading '%s'\n", args[0]);
+            e.printStackTrace();
+            System.exit(-1);
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package highlighter;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Writes many small documents into a single append-only pack file (instead of one file + directory per document).
+ *
+ * Safe to use from multiple threads: each write reserves its byte range with an atomic add on the end-of-file offset
+ * and then does a positional write into that range, so concurrent writers never wait on each other.
+ *
+ * A FileChannel is closed for every thread if a thread writing to it is interrupted, so writes don't depend on the
+ * writer's interrupt state: the flag is cleared for the duration of the write, and if the channel gets closed anyway
+ * (by an interrupt arriving mid-write), it's reopened and the write is retried.
+ *
+ * Pack layout (all integers big-endian):
+ *    header:   int MAGIC, int VERSION
+ *    data:     entry bytes, in the order their ranges were reserved
+ *    index:    int count, then for each entry: UTF path, long offset, int length
+ *    footer:   long index offset, int MAGIC
+ *
+ * Entries are keyed by their path relative to the pack's root, using '/' as the separator. Use PackReader to read
+ * entries back.
+ */
+public class PackWriter implements Closeable {
+    static final int MAGIC   = 0x484c504b;     // "HLPK"
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 8;
+    static final int FOOTER_SIZE = 12;
+
+    static class Entry {
+        final String path;
+        final long offset;
+        final int length;
+
+        Entry (String path, long offset, int length) {
+            this.path = path;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    private final Path root;
+    private final File packFile;
+    private volatile FileChannel channel;
+    private volatile boolean finished = false;    // (close() has been called)
+    private final AtomicLong end = new AtomicLong(HEADER_SIZE);
+    private final ConcurrentLinkedQueue<Entry> index = new ConcurrentLinkedQueue<>();
+
+    // Creates (or overwrites) the pack file. Entry paths are computed relative to root, which should be the path that
+    // output files would have been written under (ie. the output dir passed to Htmlify).
+    public PackWriter (File packFile, File root) throws IOException {
+        this.root = root.toPath();
+        this.packFile = packFile;
+        File parent = packFile.getAbsoluteFile().getParentFile();
+        if (parent != null && !parent.exists())
+            parent.mkdirs();
+        this.channel = FileChannel.open(packFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).putInt(VERSION).flip();
+        writeFully(header, 0);
+    }
+
+    // Returns the pack path for a file that would have been written under root
+    public String entryPath (File file) {
+        return root.relativize(file.toPath()).toString().replace(File.separatorChar, '/');
+    }
+
+    // Appends an entry to the pack
+    public void write (String path, byte[] data, int length) throws IOException {
+        long offset = end.getAndAdd(length);
+        writeFully(ByteBuffer.wrap(data, 0, length), offset);
+        index.add(new Entry(path, offset, length));
+    }
+
+    // Returns an output stream that buffers its contents and appends them as a single entry when closed.
+    // Used as a drop-in replacement for a FileOutputStream.
+    public OutputStream openEntry (File file) {
+        final String path = entryPath(file);
+        return new ByteArrayOutputStream() {
+            private boolean closed = false;
+
+            @Override
+            public void close () throws IOException {
+                if (closed)
+                    return;
+                closed = true;
+                PackWriter.this.write(path, buf, count);
+            }
+        };
+    }
+
+    // Returns the number of entries written so far
+    public int size () {
+        return index.size();
+    }
+
+    private void writeFully (ByteBuffer buf, long position) throws IOException {
+        boolean interrupted = Thread.interrupted();
+        try {
+            while (buf.hasRemaining()) {
+                FileChannel current = channel;
+                try {
+                    position += current.write(buf, position);
+                } catch (ClosedChannelException e) {
+                    // closed by an interrupt (of this or another writer): the bytes of a positional write that didn't
+                    // complete are simply written again
+                    if (finished)
+                        throw e;
+                    interrupted |= Thread.interrupted();
+                    reopen(current);
+                }
+            }
+        } finally {
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+    }
+
+    // Replaces the channel if it's still the given (closed) one
+    private synchronized void reopen (FileChannel closedChannel) throws IOException {
+        if (channel == closedChannel)
+            channel = FileChannel.open(packFile.toPath(), StandardOpenOption.WRITE);
+    }
+
+    // Writes the index + footer and closes the pack. Must only be called after all writers have finished.
+    @Override
+    public void close () throws IOException {
+        finished = true;
+        long indexOffset = end.get();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(index.size());
+            for (Entry entry : index) {
+                out.writeUTF(entry.path);
+                out.writeLong(entry.offset);
+                out.writeInt(entry.length);
+            }
+            out.writeLong(indexOffset);
+            out.writeInt(MAGIC);
+        }
+        writeFully(ByteBuffer.wrap(bytes.toByteArray()), indexOffset);
+        channel.truncate(indexOffset + bytes.size());
+        channel.close();
+    }
+}
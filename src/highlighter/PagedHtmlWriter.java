@@ -0,0 +1,206 @@
+package highlighter;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Writes the html for one source as pages of a fixed number of lines (Htmlify --page-lines), plus an index page
+ * linking to them, for sources too large to view as a single document.
+ *
+ * Tokens are added in order (by Parser.render, or a window at a time by StreamParser.render), and each page
+ * is written out as soon as the first char of the next one arrives, so only one page of html is held at a time and
+ * the first pages of a streamed file are available while the rest is still being parsed. A span that's open at a
+ * page boundary is closed at the end of the page and reopened at the start of the next one.
+ *
+ * The index page goes to the output file itself, and page k to <output>.p<k>.html next to it. A source that fits on
+ * one page is written to the output file as usual, with the same html as Parser.makeHtml would produce. Pages past
+ * the last one (left by an earlier run over a longer source) are deleted once the output is complete.
+ */
+public class PagedHtmlWriter implements TokenRenderer {
+    // Opens the output for a page, and deletes stale ones
+    public interface PageOutput {
+        Writer open (File file) throws IOException;
+
+        // Deletes a page written by an earlier run, returning false if there wasn't one
+        boolean delete (File file);
+    }
+
+    private final File outputFile;
+    private final int pageLines;
+    private final String cssLink;
+    private final boolean compact;
+    private final PageOutput output;
+
+    private final StringBuilder page = new StringBuilder();
+    private int pages = 0;          // pages written so far
+    private int lines = 0;          // newlines on the current page
+    private boolean lineOpen = false;   // chars have been added since the last newline
+    private boolean full = false;   // the current page has pageLines lines: the next char starts a new page
+    private long outputChars = 0;
+    private Parser.TokenType spanType = null;           // type of the span that's open in the html, or null
+    private Parser.TokenType current = Parser.TokenType.TEXT;   // (compact) type of the current run of tokens
+    private boolean continuing = false;                 // (default) the current span continues a partial token
+
+    public PagedHtmlWriter (File outputFile, int pageLines, String cssLink, boolean compact, PageOutput output) {
+        if (pageLines < 1)
+            throw new IllegalArgumentException("pages must have at least one line");
+        this.outputFile = outputFile;
+        this.pageLines = pageLines;
+        this.cssLink = cssLink;
+        this.compact = compact;
+        this.output = output;
+        Parser.appendHeader(page, cssLink);
+    }
+
+    // Adds the current token of a cursor (which may be a partial token, see TokenCursor.open)
+    @Override
+    public void token (TokenCursor token) throws IOException {
+        beginToken(token.type());
+        for (int i = 0, n = token.length(); i < n; ++i)
+            appendChar(token.charAt(i));
+        endToken(token.open());
+    }
+
+    // (pages are written as soon as they're complete)
+    @Override
+    public void flush () {}
+
+    private void beginToken (Parser.TokenType type) throws IOException {
+        if (compact) {
+            if (type != current) {
+                if (current != Parser.TokenType.TEXT)
+                    closeSpan();
+                if (type != Parser.TokenType.TEXT)
+                    openSpan(type);
+                current = type;
+            }
+        } else if (!continuing) {
+            openSpan(type);
+        }
+    }
+
+    private void endToken (boolean open) {
+        if (!compact) {
+            continuing = open;
+            if (!continuing)
+                closeSpan();
+        }
+    }
+
+    // Writes the last page and the index page (or the whole output, if it fit on one page)
+    @Override
+    public void finish () throws IOException {
+        if (spanType != null)
+            closeSpan();
+        if (pages == 0) {
+            page.append(Parser.HTML_FOOTER);
+            write(outputFile, page);
+            deletePages(outputFile, 1, output);
+            return;
+        }
+        writePage(true);
+        Parser.appendHeader(page, cssLink);
+        int lastPageLines = lines + (lineOpen ? 1 : 0);     // (a final line without a newline still counts)
+        for (int k = 1; k <= pages; ++k) {
+            page.append(String.format("<a href=\"%s\">lines %d - %d</a>\n", pageFile(k).getName(),
+                    (k - 1) * pageLines + 1, (k - 1) * pageLines + (k < pages ? pageLines : lastPageLines)));
+        }
+        page.append(Parser.HTML_FOOTER);
+        write(outputFile, page);
+        deletePages(outputFile, pages + 1, output);
+    }
+
+    // Deletes the pages of outputFile from page `from` on, up to the first one that doesn't exist
+    public static void deletePages (File outputFile, int from, PageOutput output) {
+        int k = from;
+        while (output.delete(pageFile(outputFile, k)))
+            ++k;
+    }
+
+    // Number of pages written (0 if the output fit on one page, and went to the output file as is)
+    public int getPages () {
+        return pages;
+    }
+
+    // Chars of html written (including the index page)
+    public long getOutputChars () {
+        return outputChars;
+    }
+
+    // File page k (1-based) is written to
+    public File pageFile (int k) {
+        return pageFile(outputFile, k);
+    }
+
+    // File page k (1-based) of the output written to outputFile goes to
+    public static File pageFile (File outputFile, int k) {
+        String path = outputFile.getPath();
+        if (path.endsWith(".html"))
+            path = path.substring(0, path.length() - ".html".length());
+        return new File(path + ".p" + k + ".html");
+    }
+
+    private void openSpan (Parser.TokenType type) throws IOException {
+        if (full)
+            breakPage();    // (so the span starts on the page its text goes on)
+        page.append(Parser.spanTag(type));
+        spanType = type;
+    }
+
+    private void closeSpan () {
+        page.append("</span>");
+        spanType = null;
+    }
+
+    private void appendChar (char c) throws IOException {
+        if (full)
+            breakPage();
+        switch (c) {
+            case '<': page.append("&lt;"); break;
+            case '>': page.append("&gt;"); break;
+            case '&': page.append("&amp;"); break;
+            case '\n':
+                page.append(c);
+                lineOpen = false;
+                if (++lines == pageLines)
+                    full = true;
+                return;
+            default: page.append(c);
+        }
+        lineOpen = true;
+    }
+
+    // Writes the current page (closing the open span, if any) and starts the next one (reopening it)
+    private void breakPage () throws IOException {
+        Parser.TokenType reopen = spanType;
+        if (reopen != null)
+            page.append("</span>");
+        writePage(false);
+        Parser.appendHeader(page, cssLink);
+        if (reopen != null)
+            page.append(Parser.spanTag(reopen));
+        lines = 0;
+        full = false;
+    }
+
+    private void writePage (boolean last) throws IOException {
+        int k = ++pages;
+        page.append("</code></pre><p>");
+        if (k > 1)
+            page.append(String.format("<a href=\"%s\">previous</a> | ", pageFile(k - 1).getName()));
+        page.append(String.format("<a href=\"%s\">index</a>", outputFile.getName()));
+        if (!last)
+            page.append(String.format(" | <a href=\"%s\">next</a>", pageFile(k + 1).getName()));
+        page.append("</p></body>");
+        write(pageFile(k), page);
+    }
+
+    private void write (File file, StringBuilder html) throws IOException {
+        try (Writer out = output.open(file)) {
+            out.append(html);
+        }
+        outputChars += html.length();
+        html.setLength(0);
+    }
+}
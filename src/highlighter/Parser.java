@@ -2,13 +2,41 @@ package highlighter;
 
 import java.io.*;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
  * Created by Seiji on 4/8/15.
  */
 public class Parser {
+    // If set, parse() classifies the whole input up front with Matcher.matchAll() and runs its state machine off the
+    // resulting array, instead of calling Matcher.match() once per position (see setBatchMatching)
+    static final boolean USE_BATCH_MATCHING = false;
+    // If set, parse() uses CharScanners to skip over chars that can't change its state (see triggerChars()), with
+    // the fastest backend available up to SCAN_BACKEND (the Vector API one needs --add-modules jdk.incubator.vector)
+    static final boolean USE_CHAR_SCANNING = true;
+    static final int SCAN_BACKEND = CharScanner.VECTOR;
+
     Matcher textMatcher;
     Stats stats;
+    KeywordTable keywordTable;      // used to classify whole identifier runs (see parse())
+    StringMatcher dictionary;       // if set, identifiers it matches are DICTIONARY tokens (see setDictionary)
+    boolean[] terminalChars = new boolean[128];         // ascii chars matched by the TERMINAL rule
+    boolean[] multiCharRuleStart = new boolean[128];    // ascii chars that start a rule longer than one char
+    Map<String, Integer> rules = new LinkedHashMap<>();  // all rules added to textMatcher, with their tags
+    int maxRuleLength = 0;          // length of the longest rule, ie. how far ahead a single match can look
+    long deadline = 0;              // System.nanoTime() by which parsing / rendering must finish, or 0 (see setDeadline)
+    static final int DEADLINE_CHECK_INTERVAL = 1 << 12;     // loop iterations (or tokens) between deadline checks
+
+    boolean batchMatching = USE_BATCH_MATCHING;
+    boolean charScanning;
+    CharScanner mainScanner;        // chars that can start a token (everything else falls through to the default case)
+    CharScanner eolScanner;         // chars that can end a single line comment
+    CharScanner commentEndScanner;  // chars that can end a multiline comment
+    CharScanner singleQuoteScanner; // chars that can end (or escape a char in) a char literal
+    CharScanner doubleQuoteScanner; // chars that can end (or escape a char in) a string literal
 
     static final int KEYWORD_FLAG               = 0x1 << 0;
     static final int SINGLE_LINE_COMMENT        = 0x1 << 1;
@@ -24,6 +52,7 @@ public class Parser {
     static final int DECIMAL_MARKER             = 0x1 << 11;
     static final int HEX_MARKER                 = 0x1 << 12;
     static final int TERMINAL                   = 0x1 << 13;
+    static final int DICTIONARY_NAME            = 0x1;          // (the dictionary matcher's only tag)
 
     final float foo = 10.4e-1f;
     final double bar = 10.2930;
@@ -44,16 +73,16 @@ public class Parser {
                 "long", "strictfp", "volatile", "const", "float", "native", "super", "while"
         };
         textMatcher = matcher;
-        textMatcher.add(keywords, KEYWORD_FLAG);
-        textMatcher.add("//", SINGLE_LINE_COMMENT);
-        textMatcher.add("/*", MULTILINE_COMMENT_BEGIN);
-        textMatcher.add("*/", MULTILINE_COMMENT_END);
+        addRule(keywords, KEYWORD_FLAG);
+        addRule("//", SINGLE_LINE_COMMENT);
+        addRule("/*", MULTILINE_COMMENT_BEGIN);
+        addRule("*/", MULTILINE_COMMENT_END);
 
-        textMatcher.add("\n", EOL);
-        textMatcher.add("'",  SINGLE_QUOTE);
-        textMatcher.add("\"", DOUBLE_QUOTE);
-        textMatcher.add("\\'",  ESCAPED_SINGLE_QUOTE);
-        textMatcher.add("\\\"", ESCAPED_DOUBLE_QUOTE);
+        addRule("\n", EOL);
+        addRule("'",  SINGLE_QUOTE);
+        addRule("\"", DOUBLE_QUOTE);
+        addRule("\\'",  ESCAPED_SINGLE_QUOTE);
+        addRule("\\\"", ESCAPED_DOUBLE_QUOTE);
 
         String[] integers = {
                 "0", "1", "2", "3", "4", "5", "6", "7", "8", "9"
@@ -61,36 +90,173 @@ public class Parser {
         String[] hex = {
                 "A", "B", "C", "D", "E", "F", "a", "b", "c", "d", "e", "f"
         };
-        textMatcher.add(integers, INT_LITERAL);
-        textMatcher.add(hex, HEX_LITERAL);
-        textMatcher.add(".", DECIMAL_MARKER);
-        textMatcher.add("0x", HEX_MARKER);
+        addRule(integers, INT_LITERAL);
+        addRule(hex, HEX_LITERAL);
+        addRule(".", DECIMAL_MARKER);
+        addRule("0x", HEX_MARKER);
 
         String[] terminals = {
                 " ", "\t", "\n", ".", ",", ";", "(", ")", "{", "}", "[", "]",
                 "+", "-", "*", "/", "%", "&", "|", "=", ":", "?"
         };
-        textMatcher.add(terminals, TERMINAL);
+        addRule(terminals, TERMINAL);
         textMatcher.rebuild();
 
+        keywordTable = new KeywordTable(keywords);
+        setScanning(USE_CHAR_SCANNING, SCAN_BACKEND);
+
         stats.endParserInit();
     }
 
+    // Adds a rule to the matcher, recording its first char in terminalChars / multiCharRuleStart (see isTerminalAt)
+    private void addRule (String rule, int tags) {
+        textMatcher.add(rule, tags);
+        rules.put(rule, rules.containsKey(rule) ? rules.get(rule) | tags : tags);
+        char c = rule.charAt(0);
+        assert(c < 128);
+        maxRuleLength = Math.max(maxRuleLength, rule.length());
+        if (rule.length() > 1)
+            multiCharRuleStart[c] = true;
+        else if ((tags & TERMINAL) != 0)
+            terminalChars[c] = true;
+    }
+    private void addRule (String[] rules, int tags) {
+        for (String rule : rules)
+            addRule(rule, tags);
+    }
+
+    // Returns a fingerprint of the rule set (see MatcherSnapshot.fingerprint), so tokens saved by a parser (eg. in a
+    // TokenCache) are only reused by parsers with the same rules
+    public long rulesFingerprint () {
+        long h = MatcherSnapshot.FINGERPRINT_SEED;
+        for (Map.Entry<String, Integer> rule : rules.entrySet())
+            h = MatcherSnapshot.fingerprint(h, rule.getKey(), rule.getValue());
+        if (dictionary != null)
+            h = h * MatcherSnapshot.FINGERPRINT_PRIME ^ dictionary.fingerprint();
+        return h;
+    }
+
+    // Highlights the given names (eg. the JDK's class and method names, see StringMatcher.readDictionary) as
+    // DICTIONARY tokens wherever one is a whole identifier, bounded by terminals like a keyword (keywords take
+    // precedence). Entries that aren't identifiers are skipped. Must be called before the parser is copied. Returns
+    // the number of names used.
+    public int setDictionary (Collection<String> names) {
+        List<String> identifiers = new ArrayList<>();
+        for (String name : names) {
+            if (isIdentifier(name))
+                identifiers.add(name);
+        }
+        StringMatcher matcher = new StringMatcher(stats);
+        matcher.setSnapshotFile(null);      // (the snapshot file, if any, is for textMatcher's rules)
+        matcher.addAll(identifiers, DICTIONARY_NAME);
+        matcher.rebuild();
+        dictionary = identifiers.isEmpty() ? null : matcher;
+        return identifiers.size();
+    }
+
+    static boolean isIdentifier (String s) {
+        if (s.isEmpty() || (s.charAt(0) >= '0' && s.charAt(0) <= '9'))
+            return false;
+        for (int i = 0; i < s.length(); ++i) {
+            if (!isWordChar(s.charAt(i)))
+                return false;
+        }
+        return true;
+    }
+
+    // Returns true if s[i, e) (a whole identifier) is in the dictionary. Entries are all identifiers, so a match
+    // can't extend past e.
+    boolean isDictionaryName (String s, int i, int e) {
+        return dictionary.match(s, i) != 0 && dictionary.matchedChars() == e - i;
+    }
+
+    // Returns the chars that parse() must stop at when scanning for a rule with one of the given tags: the first chars
+    // of those rules, plus the first char of any multi-char rule that has one of the chars found so far after its
+    // first char (matching such a rule jumps over that char, and the scan must land exactly where the unscanned
+    // loop would have).
+    String triggerChars (int tags) {
+        boolean[] set = new boolean[128];
+        for (Map.Entry<String, Integer> rule : rules.entrySet()) {
+            if ((rule.getValue() & tags) != 0)
+                set[rule.getKey().charAt(0)] = true;
+        }
+        for (boolean changed = true; changed; ) {
+            changed = false;
+            for (String rule : rules.keySet()) {
+                if (set[rule.charAt(0)])
+                    continue;
+                for (int i = 1; i < rule.length(); ++i) {
+                    char c = rule.charAt(i);
+                    if (c < 128 && set[c]) {
+                        set[rule.charAt(0)] = true;
+                        changed = true;
+                        break;
+                    }
+                }
+            }
+        }
+        StringBuilder sb = new StringBuilder();
+        for (char c = 0; c < 128; ++c) {
+            if (set[c])
+                sb.append(c);
+        }
+        return sb.toString();
+    }
+
+    // Sets whether parse() classifies the whole input up front with Matcher.matchAll(), or calls Matcher.match() at
+    // each position it needs (both produce the same tokens)
+    void setBatchMatching (boolean enabled) {
+        batchMatching = enabled;
+    }
+
+    // (Re)creates the CharScanners used by parse(), with the given CharScanner backend. If enabled is false, parse()
+    // steps through every char.
+    void setScanning (boolean enabled, int backend) {
+        charScanning = enabled;
+        StringBuilder wordChars = new StringBuilder("_$");
+        for (char c = '0'; c <= '9'; ++c)
+            wordChars.append(c);
+        for (char c = 'a'; c <= 'z'; ++c)
+            wordChars.append(c).append(Character.toUpperCase(c));
+        String tokenStarts = triggerChars(SINGLE_LINE_COMMENT | MULTILINE_COMMENT_BEGIN | KEYWORD_FLAG |
+                SINGLE_QUOTE | DOUBLE_QUOTE | INT_LITERAL | HEX_MARKER) + wordChars;
+        mainScanner        = CharScanner.create(tokenStarts, true, backend);
+        eolScanner         = CharScanner.create(triggerChars(EOL), false, backend);
+        commentEndScanner  = CharScanner.create(triggerChars(MULTILINE_COMMENT_END), false, backend);
+        singleQuoteScanner = CharScanner.create(triggerChars(SINGLE_QUOTE | ESCAPED_SINGLE_QUOTE), false, backend);
+        doubleQuoteScanner = CharScanner.create(triggerChars(DOUBLE_QUOTE | ESCAPED_DOUBLE_QUOTE), false, backend);
+    }
+
     public Parser (Parser other, Stats stats) {
         this.textMatcher = other.textMatcher.cloneWith(stats);
         this.stats = stats;
+        this.keywordTable = other.keywordTable;
+        this.dictionary = other.dictionary != null ? (StringMatcher)other.dictionary.cloneWith(stats) : null;
+        this.terminalChars = other.terminalChars;
+        this.multiCharRuleStart = other.multiCharRuleStart;
+        this.rules = other.rules;
+        this.maxRuleLength = other.maxRuleLength;
+        this.batchMatching = other.batchMatching;
+        this.charScanning = other.charScanning;
+        this.mainScanner = other.mainScanner.copy();
+        this.eolScanner = other.eolScanner.copy();
+        this.commentEndScanner = other.commentEndScanner.copy();
+        this.singleQuoteScanner = other.singleQuoteScanner.copy();
+        this.doubleQuoteScanner = other.doubleQuoteScanner.copy();
     }
 
     enum TokenType {
         KEYWORD,
         LITERAL,
         COMMENT,
-        TEXT
+        TEXT,
+        DICTIONARY      // a name from the dictionary (see setDictionary)
     }
 
     static class Token {
         String tok;
         TokenType type;
+        boolean open = false;   // set on a partial token that continues in the next token (see parseTokens)
 
         Token (String s, int b, int e, TokenType type) {
             this.tok = s.substring(b, e);
@@ -111,6 +277,7 @@ public class Parser {
                 case LITERAL: sb.append("LITERAL) '"); break;
                 case COMMENT: sb.append("COMMENT) '"); break;
                 case TEXT: sb.append("TEXT) '"); break;
+                case DICTIONARY: sb.append("DICTIONARY) '"); break;
                 default: sb.append("unknown) '"); break;
             }
             sb.append(tok);
@@ -120,108 +287,428 @@ public class Parser {
     }
 
     // parse()-specific state
-    ArrayList<Token> tokens = null;
+    ArrayList<Token> tokens = null;  // token sink for parse(String)
+    TokenStore store = null;         // token sink for parse(String, TokenArena)
     int start = 0;
     int prev  = 0;
+    int[] matches = new int[0];     // matchAll() results for the current input (reused between calls)
+    static final int MAX_RETAINED_MATCHES = 1 << 20;    // larger match arrays are dropped after parse()
+    int lastEnd = 0;                // end() / matchedChars() of the last matchAt() call
+    int lastMatched = 0;
+
+    // Lexer state carried between windows of a streamed input (see parseTokens and StreamParser)
+    int base = 0;                   // offset of the current window in the whole input
+    int resumeTags = 0;             // rule (comment / string) that the last window stopped inside of, or 0
+    boolean pieceOpen = false;      // the last token added was a partial (open) token
+    LineIndex lineIndex = null;     // line index to record checkpoints in (see parse(String, LineIndex)), or null
 
     // Utility functions
     void beginToken (String s, int i) {
         start = i;
         if (start != prev) {
             assert(start > prev);
-            tokens.add(new Token(s, prev, start, TokenType.TEXT));
+            addToken(s, prev, start, TokenType.TEXT);
             prev = start;
+        } else if (pieceOpen) {
+            addToken(s, start, start, TokenType.TEXT);  // closes the partial text token
         }
     }
     void endToken (String s, int i, TokenType type) {
         if (start != i) {
             assert(start < i);
-            tokens.add(new Token(s, start, i, type));
+            addToken(s, start, i, type);
             prev = i;
+        } else if (pieceOpen) {
+            addToken(s, i, i, type);    // closes the partial comment / string
+        }
+    }
+    void addToken (String s, int b, int e, TokenType type) {
+        pieceOpen = false;
+        if (store != null)
+            store.add(b, e - b, type);
+        else
+            tokens.add(new Token(s, b, e, type));
+    }
+    // Adds s[b, e) as a partial token, to be continued by the next token added
+    void addPiece (String s, int b, int e, TokenType type) {
+        if (b == e)
+            return;
+        Token token = new Token(s, b, e, type);
+        token.open = true;
+        tokens.add(token);
+        pieceOpen = true;
+    }
+    // Removes tokens added since tokens.size() was mark
+    void truncateTokens (int mark, boolean markPieceOpen) {
+        while (tokens.size() > mark)
+            tokens.remove(tokens.size() - 1);
+        pieceOpen = markPieceOpen;
+    }
+    // Equivalent to textMatcher.match(s, i), but reads the result from the matches array when batch matching.
+    // The end / length of the match are available from matchEnd() / lastMatched, as with Matcher.end() etc.
+    int matchAt (String s, int i) {
+        int tags;
+        if (batchMatching) {
+            if (i < 0 || i >= s.length()) {
+                lastMatched = 0;
+                lastEnd = i;
+                return 0;
+            }
+            int m = matches[i];
+            tags = Matcher.matchTags(m);
+            lastMatched = Matcher.matchLength(m);
+            lastEnd = i + lastMatched;
+        } else {
+            tags = textMatcher.match(s, i);
+            lastMatched = textMatcher.matchedChars();
+            lastEnd = textMatcher.end();
         }
+        return tags;
+    }
+    int matchEnd () {
+        return lastEnd;
     }
     boolean match (String s, int i, int type) {
-        return (textMatcher.match(s, i) & type) != 0;
+        return (matchAt(s, i) & type) != 0;
     }
     int next () {
-        int incr = textMatcher.matchedChars();
+        int incr = lastMatched;
         return incr != 0 ? incr : 1;
     }
+    // Same result as match(s, i, TERMINAL), but only walks the trie if s[i] could start a longer rule (eg. '/' could
+    // be the start of a comment, which isn't a terminal)
+    boolean isTerminalAt (String s, int i) {
+        if (i >= s.length())
+            return false;
+        char c = s.charAt(i);
+        if (c >= 128)
+            return false;
+        if (multiCharRuleStart[c])
+            return match(s, i, TERMINAL);
+        return terminalChars[c];
+    }
+    // Identifier / number characters. None of these are terminals, so no rule can start in the middle of a run of
+    // them (keywords and literals must follow a terminal), and none of them start a comment or string.
+    static boolean isWordChar (char c) {
+        if (c < 128)
+            return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '_' || c == '$';
+        return Character.isJavaIdentifierPart(c);
+    }
+    // Returns the position of the next char in s[i, n) that the scanner stops at (or i, if scanning is disabled)
+    int scan (CharScanner scanner, String s, int i) {
+        return charScanning ? scanner.next(s, i) : i;
+    }
+    // Returns the end of the run of word chars starting at i
+    static int wordEnd (String s, int i, int n) {
+        while (i < n && isWordChar(s.charAt(i)))
+            ++i;
+        return i;
+    }
 
-    public ArrayList<Token> parse(String s) {
+    // Thrown by parse() / makeHtml() when the deadline set by setDeadline() has passed
+    public static class DeadlineExceededException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
 
-        stats.beginParse();
+        public DeadlineExceededException () {
+            super("deadline exceeded");
+        }
+    }
+
+    // Makes parse() and makeHtml() give up with a DeadlineExceededException once System.nanoTime() passes deadline
+    // (0 for no deadline). It's only checked every DEADLINE_CHECK_INTERVAL iterations of the parse / render loops,
+    // so it can be overshot slightly. The parser can be reused after it's thrown.
+    public void setDeadline(long deadline) {
+        this.deadline = deadline;
+    }
 
+    private void checkDeadline() {
+        if (deadline != 0 && System.nanoTime() - deadline > 0) {
+            mainScanner.reset();
+            eolScanner.reset();
+            commentEndScanner.reset();
+            singleQuoteScanner.reset();
+            doubleQuoteScanner.reset();
+            pieceOpen = false;
+            throw new DeadlineExceededException();
+        }
+    }
+
+    public ArrayList<Token> parse(String s) {
         tokens = new ArrayList<Token>();
-        prev = 0;
-        start = 0;
+        store = null;
+        base = 0;
+        resumeTags = 0;
+        prev = start = 0;
+        parseTokens(s, 0, true);
+        ArrayList<Token> result = tokens;
+        tokens = null;
+        if (matches.length > MAX_RETAINED_MATCHES)
+            matches = new int[0];   // don't hold on to memory for the largest file each thread has seen
+        return result;
+    }
+
+    // Same as parse(String), but also records the checkpoints of a line index built for s (see LineIndex)
+    public ArrayList<Token> parse(String s, LineIndex index) {
+        if (index.sourceLength() != s.length())
+            throw new IllegalArgumentException("line index doesn't match the source");
+        index.reset();
+        lineIndex = index;
+        try {
+            return parse(s);
+        } finally {
+            lineIndex = null;
+        }
+    }
+
+    // Builds a line index for s (parsing it, and dropping the tokens)
+    public LineIndex indexLines(String s) {
+        LineIndex index = new LineIndex(s);
+        parse(s, index);
+        return index;
+    }
+
+    // Parses s from a checkpoint (a position the main loop of a full parse started an iteration at, see LineIndex),
+    // and returns the tokens covering s[from, to), clipped to it. Only s[checkpoint - 1, to + a margin) is lexed.
+    ArrayList<Token> parseRange(String s, int checkpoint, int from, int to) {
+        if (from >= to)
+            return new ArrayList<Token>();
+        final int n = s.length();
+        final int windowStart = Math.max(checkpoint - 1, 0);    // (the char before is needed for boundary checks)
+        int margin = 2 * maxRuleLength + 2 + 256;
+        ArrayList<Token> parsed;
+        while (true) {
+            int end = n - to > margin ? to + margin : n;
+            boolean eof = end == n;
+            tokens = new ArrayList<Token>();
+            store = null;
+            base = windowStart;
+            resumeTags = 0;
+            pieceOpen = false;
+            prev = start = checkpoint - windowStart;
+            int stop = parseTokens(windowStart == 0 && eof ? s : s.substring(windowStart, end), prev, eof);
+            parsed = tokens;
+            if (eof || windowStart + stop >= to)
+                break;
+            margin *= 2;    // stopped short of the range (eg. on a long literal at the end of the window)
+        }
+        tokens = null;
+        base = 0;
+        resumeTags = 0;
+        pieceOpen = false;
+        if (matches.length > MAX_RETAINED_MATCHES)
+            matches = new int[0];
+
+        ArrayList<Token> range = new ArrayList<Token>();
+        int pos = checkpoint;
+        for (Token token : parsed) {
+            int b = pos, e = pos + token.tok.length();
+            pos = e;
+            if (e <= from)
+                continue;
+            if (b >= to)
+                break;
+            if (b >= from && e <= to) {
+                token.open = false;
+                range.add(token);
+            } else {
+                range.add(new Token(token.tok, Math.max(b, from) - b, Math.min(e, to) - b, token.type));
+            }
+        }
+        return range;
+    }
+
+    // Parses s into an off-heap TokenStore allocated from the given arena (see TokenStore). The store holds its own
+    // copy of s, so the caller doesn't need to keep the source string around to render it later.
+    public TokenStore parse(String s, TokenArena arena) {
+        store = new TokenStore(arena, s, s.length() / 4);
+        tokens = null;
+        base = 0;
+        resumeTags = 0;
+        prev = start = 0;
+        try {
+            parseTokens(s, 0, true);
+            return store;
+        } finally {
+            store = null;
+        }
+    }
+
+    // Parses s from position i, adding tokens to the current sink (tokens / store), and returns the position it
+    // stopped at.
+    //
+    // If eof is false, s is a window into a longer input that starts at offset base (see StreamParser). Parsing then
+    // stops early enough that every decision it made only depended on chars inside the window: matches are only used
+    // below limit (where no rule can run off the end of s), and no new token is started at or after stopAt. A comment
+    // or string that's still open at the end is added as a partial token and its rule saved in resumeTags, so the
+    // next window can pick up inside it; plain text up to the stop position is added as a partial token too. Tokens
+    // that would need chars past the window (eg. an identifier running up to its end) are left for the next window.
+    int parseTokens(String s, int i, boolean eof) {
+
+        stats.beginParse();
 
         int e;   // tmp var
+        final int n = s.length();
+        final int limit  = eof ? n : Math.max(n - maxRuleLength, 0);
+        final int stopAt = eof ? n : Math.max(n - 2 * maxRuleLength - 2, 0);
+        int resume = resumeTags;
+        resumeTags = 0;
+
+        if (batchMatching) {
+            if (matches.length < s.length())
+                matches = new int[Math.max(s.length(), matches.length * 2)];
+            textMatcher.matchAll(s, matches);
+        }
 
 //        long startTime = System.nanoTime();
-        for (int i = 0, n = s.length(); i < n;) {
-            switch (textMatcher.match(s, i)) {
+        int deadlineCheck = DEADLINE_CHECK_INTERVAL;
+        final LineIndex lineIndex = this.lineIndex;
+        scan:
+        while (i < stopAt) {
+            if (lineIndex != null)
+                lineIndex.recordLoopTop(base + i);
+            if (--deadlineCheck == 0) {
+                deadlineCheck = DEADLINE_CHECK_INTERVAL;
+                checkDeadline();
+            }
+            int tags;
+            boolean resuming = resume != 0;
+            if (resuming) {
+                tags = resume;
+                resume = 0;
+            } else {
+                // Consume whole identifier runs in one step, so positions inside a word never reach the matcher.
+                // (i == 0 is left to the matcher, since it doesn't check word boundaries at the start of the input)
+                char c = s.charAt(i);
+                if (base + i > 0 && isWordChar(c)) {
+                    e = wordEnd(s, i + 1, n);
+                    if (e > stopAt)
+                        break scan;         // (only when streaming) the run may continue in the next window
+                    if (!isTerminalAt(s, i - 1)) {
+                        i = e; continue;    // inside another token
+                    }
+                    if (c < '0' || c > '9') {
+                        if (isTerminalAt(s, e)) {
+                            if (keywordTable.contains(s, i, e)) {
+                                beginToken(s, i);
+                                endToken(s, e, TokenType.KEYWORD);
+                            } else if (dictionary != null && isDictionaryName(s, i, e)) {
+                                beginToken(s, i);
+                                endToken(s, e, TokenType.DICTIONARY);
+                            }
+                        }
+                        i = e; continue;
+                    }
+                    // numeric literals are handled below
+                }
+                tags = matchAt(s, i);
+            }
+            switch (tags) {
                 case SINGLE_LINE_COMMENT:
-                    beginToken(s, i);
-                    i = textMatcher.end();
-                    while (i < n && !match(s, i, EOL))
+                    if (!resuming) {
+                        beginToken(s, i);
+                        i = matchEnd();
+                    }
+                    e = i;
+                    int from = i;
+                    while ((from = i) < limit && (i = scan(eolScanner, s, i)) < limit && !match(s, i, EOL))
                         i += next();
-                    i = textMatcher.end();
+                    if (i >= limit && !eof) {
+                        // stop below limit, at a position the unscanned loop also stops at (as it does at every char
+                        // between from and the scan result), so the fallback below always has a match to end on
+                        i = Math.min(i, Math.max(from, limit - 1));
+                        resumeTags = SINGLE_LINE_COMMENT;
+                        break scan;
+                    }
+                    if (i >= n && charScanning) {
+                        // comment runs to the end of the input: matchEnd() has to come from the last position the
+                        // unscanned loop would have stopped at, so step through the comment one match at a time
+                        // (from e, which is the start of the comment body or, when streaming, a position the
+                        // unscanned loop also stops at)
+                        for (i = e; i < n && !match(s, i, EOL); )
+                            i += next();
+                    }
+                    i = matchEnd();
                     endToken(s, i, TokenType.COMMENT);
                     break;
                 case MULTILINE_COMMENT_BEGIN:
-                    beginToken(s, i);
-                    i = textMatcher.end();
-                    while (i < n && !match(s, i, MULTILINE_COMMENT_END))
+                    if (!resuming) {
+                        beginToken(s, i);
+                        i = matchEnd();
+                    }
+                    while (i < limit && (i = scan(commentEndScanner, s, i)) < limit && !match(s, i, MULTILINE_COMMENT_END))
                         i += next();
+                    if (i >= limit && !eof) {
+                        resumeTags = MULTILINE_COMMENT_BEGIN;
+                        break scan;
+                    }
                     if (i < n)
-                        i = textMatcher.end();
+                        i = matchEnd();
                     endToken(s, i, TokenType.COMMENT);
                     break;
                 case KEYWORD_FLAG:
-                    e = textMatcher.end();
-                    if (i > 0 && (!match(s, i-1, TERMINAL) || !match(s, e, TERMINAL))) {
+                    e = matchEnd();
+                    if (base + i > 0 && (!match(s, i-1, TERMINAL) || !match(s, e, TERMINAL))) {
                         ++i; continue;   // keyword not bounded by terminal characters (ie. it's inside another token)
                     }
                     beginToken(s, i);
                     endToken(s, e, TokenType.KEYWORD);
                     i = e;
                     break;
-                case SINGLE_QUOTE:
-                    beginToken(s, i);
-                    i = textMatcher.end();
-                    while (i < n) {
+                case SINGLE_QUOTE: {
+                    if (!resuming) {
+                        beginToken(s, i);
+                        i = matchEnd();
+                    }
+                    boolean closed = false;
+                    while (i < limit && (i = scan(singleQuoteScanner, s, i)) < limit) {
                         if (match(s, i, ESCAPED_SINGLE_QUOTE)) {
                             i += next();
                         } else if (match(s, i, SINGLE_QUOTE)) {
                             i += next();
+                            closed = true;
                             break;
                         } else {
                             ++i;
                         }
                     }
+                    if (!closed && i >= limit && !eof) {
+                        resumeTags = SINGLE_QUOTE;
+                        break scan;
+                    }
                     endToken(s, i, TokenType.LITERAL);
                     break;
-                case DOUBLE_QUOTE:
-                    beginToken(s, i);
-                    i = textMatcher.end();
-                    while (i < n) {
+                }
+                case DOUBLE_QUOTE: {
+                    if (!resuming) {
+                        beginToken(s, i);
+                        i = matchEnd();
+                    }
+                    boolean closed = false;
+                    while (i < limit && (i = scan(doubleQuoteScanner, s, i)) < limit) {
                         if (match(s, i, ESCAPED_DOUBLE_QUOTE)) {
                             i += next();
                         } else if (match(s, i, DOUBLE_QUOTE)) {
                             i += next();
+                            closed = true;
                             break;
                         } else {
                             ++i;
                         }
                     }
+                    if (!closed && i >= limit && !eof) {
+                        resumeTags = DOUBLE_QUOTE;
+                        break scan;
+                    }
                     endToken(s, i, TokenType.LITERAL);
                     break;
-                case INT_LITERAL:
-                    e = textMatcher.end();
-                    if (i > 0 && (!match(s, i-1, TERMINAL))) {
+                }
+                case INT_LITERAL: {
+                    e = matchEnd();
+                    if (base + i > 0 && (!match(s, i-1, TERMINAL))) {
                         ++i; continue;
                     }
+                    final int mark = tokens != null ? tokens.size() : 0, markPrev = prev, markI = i;
+                    final boolean markPieceOpen = pieceOpen;
                     beginToken(s, i);
                     i = e;
 
@@ -229,7 +716,7 @@ public class Parser {
                         i += next();
                     if (i < n && match(s, i, DECIMAL_MARKER)) {
                         // match float component...
-                        i = textMatcher.end();
+                        i = matchEnd();
                         while (i < n && match(s, i, INT_LITERAL))
                             i += next();
                     }
@@ -250,12 +737,22 @@ public class Parser {
                         endToken(s, i, TokenType.TEXT);    // no match -- treat it like normal text instead
                         ++i;
                     }
+                    if (!eof && i > stopAt) {
+                        // (only when streaming) the literal ran too close to the end of the window: undo it
+                        truncateTokens(mark, markPieceOpen);
+                        prev = markPrev;
+                        i = markI;
+                        break scan;
+                    }
                     break;
-                case HEX_MARKER:
-                    e = textMatcher.end();
-                    if (i > 0 && (!match(s, i-1, TERMINAL))) {
+                }
+                case HEX_MARKER: {
+                    e = matchEnd();
+                    if (base + i > 0 && (!match(s, i-1, TERMINAL))) {
                         ++i; continue;
                     }
+                    final int mark = tokens != null ? tokens.size() : 0, markPrev = prev, markI = i;
+                    final boolean markPieceOpen = pieceOpen;
                     beginToken(s, i);
                     i = e;
                     while (i < n && match(s, i, INT_LITERAL | HEX_LITERAL))
@@ -267,12 +764,40 @@ public class Parser {
                         endToken(s, i, TokenType.TEXT);
                         ++i;
                     }
+                    if (!eof && i > stopAt) {
+                        truncateTokens(mark, markPieceOpen);
+                        prev = markPrev;
+                        i = markI;
+                        break scan;
+                    }
                     break;
+                }
                 default:
-                    ++i;
+                    i = scan(mainScanner, s, i + 1);
+                    if (i > stopAt)
+                        i = stopAt;     // (only when streaming) everything up to the next trigger char is plain text
             }
         }
-        beginToken(s, s.length());  // adds last token
+        if (resume != 0)
+            resumeTags = resume;        // (only when streaming) stopped before getting to resume
+        if (eof) {
+            if (lineIndex != null)
+                lineIndex.finish();
+            beginToken(s, s.length());  // adds last token
+        } else if (resumeTags != 0) {
+            TokenType type = (resumeTags & (SINGLE_LINE_COMMENT | MULTILINE_COMMENT_BEGIN)) != 0 ?
+                    TokenType.COMMENT : TokenType.LITERAL;
+            addPiece(s, start, i, type);
+            start = prev = i;
+        } else {
+            addPiece(s, prev, i, TokenType.TEXT);
+            prev = i;
+        }
+        mainScanner.reset();
+        eolScanner.reset();
+        commentEndScanner.reset();
+        singleQuoteScanner.reset();
+        doubleQuoteScanner.reset();
 
         stats.endParse();
 
@@ -286,61 +811,138 @@ public class Parser {
 //        }
 //        System.out.println("html:");
 //        System.out.println(produceHtml(tokens));
-        return tokens;
+        return i;
     }
 
     public String makeHtml(String sourceCode, String cssLink) {
+        return makeHtml(sourceCode, cssLink, false);
+    }
+
+    // Generates html for the given source. If compact is set, plain text is emitted without a wrapping span and runs
+    // of same-type tokens share a single span (renders identically to the default output, but is much smaller).
+    public String makeHtml(String sourceCode, String cssLink, boolean compact) {
 //        System.out.printf("Processing source code\n");
 //        long startTime = System.nanoTime();
         ArrayList<Token> tokens = parse(sourceCode);
 
 //        long htmlStart = System.nanoTime();
 
+        return makeHtml(tokens, cssLink, compact);
+    }
+
+    // Generates html for lines [fromLine, toLine) (0-based) of the given source, using a line index built for it (see
+    // LineIndex), re-lexing only from the checkpoint of fromLine. The highlighting is the same as those lines get in
+    // the output for the whole file; the header and footer are the same as makeHtml(String, String, boolean)'s.
+    public String makeHtml(String sourceCode, LineIndex index, int fromLine, int toLine, String cssLink,
+                           boolean compact) {
+        if (index.sourceLength() != sourceCode.length() || !index.isComplete())
+            throw new IllegalArgumentException("line index doesn't match the source");
+        fromLine = Math.max(0, Math.min(fromLine, index.lineCount()));
+        toLine = Math.max(fromLine, Math.min(toLine, index.lineCount()));
+        ArrayList<Token> tokens = parseRange(sourceCode, index.checkpoint(fromLine), index.lineStart(fromLine),
+                index.lineStart(toLine));
+        return makeHtml(tokens, cssLink, compact);
+    }
+
+    // Generates html from the tokens returned by parse() (for callers that time the two steps separately)
+    public String makeHtml(ArrayList<Token> tokens, String cssLink, boolean compact) {
+        return render(new TokenCursor.ListCursor(tokens), cssLink, compact);
+    }
+
+    // Generates html from any token stream (eg. tokens loaded from a TokenCache)
+    public String makeHtml(TokenCursor tokens, String cssLink, boolean compact) {
+        return render(tokens, cssLink, compact);
+    }
+
+    // Generates html from an (off-heap) parsed token store. The store is left open.
+    public String makeHtml(TokenStore tokens, String cssLink, boolean compact) {
+        return render(tokens.cursor(), cssLink, compact);
+    }
+
+    private String render(TokenCursor tokens, String cssLink, boolean compact) {
+        TokenRenderer.Html html = new TokenRenderer.Html(cssLink, compact);
+        try {
+            render(tokens, html);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);     // (can't happen rendering to memory)
+        }
+        return html.getHtml();
+    }
+
+    // Renders a token stream in several formats at once: each token is passed to every renderer in turn, so the
+    // tokens are only walked once. The renderers are finished once the tokens run out.
+    public void render(TokenCursor tokens, TokenRenderer... renderers) throws IOException {
         stats.beginHtmlGen();
+        int deadlineCheck = DEADLINE_CHECK_INTERVAL;
+        while (tokens.next()) {
+            if (--deadlineCheck == 0) {
+                deadlineCheck = DEADLINE_CHECK_INTERVAL;
+                checkDeadline();
+            }
+            for (TokenRenderer renderer : renderers)
+                renderer.token(tokens);
+        }
+        for (TokenRenderer renderer : renderers)
+            renderer.finish();
+        stats.endHtmlGen();
+    }
+    public String makeHtml (String sourceCode) {
+        return makeHtml(sourceCode, null);
+    }
 
-        StringBuilder sb = new StringBuilder();
+    // Appends everything that comes before the highlighted code
+    static void appendHeader (StringBuilder sb, String cssLink) {
         if (cssLink != null)
             sb.append(String.format("<head><link href=\"%s\" type=\"text/css\" rel=\"stylesheet\" /></head>", cssLink));
         else // use default embedded css
             sb.append(String.format("<head><style>%s</style></head>", defaultCss));
         sb.append("<body><pre class=\"prettyprint\"><code>");
-        spanify(tokens, sb);
-        sb.append("</code></pre></body>");
-
-        stats.endHtmlGen();
-//        long htmlEnd = System.nanoTime();
-
-//        System.out.printf("\thtml generation: %f ms\n", (double)(htmlEnd - htmlStart) * 1e-6);
-//        System.out.printf("\ttotal time: %f ms\n\n", (double)(htmlEnd - startTime) * 1e-6);
+    }
+    static final String HTML_FOOTER = "</code></pre></body>";
 
+    // Generates html for the given source without any highlighting (eg. as a fallback when highlighting takes too long)
+    public static String makePlainHtml(String sourceCode, String cssLink) {
+        StringBuilder sb = new StringBuilder(sourceCode.length() + sourceCode.length() / 8 + 256);
+        appendHeader(sb, cssLink);
+        escape(sourceCode, sb);
+        sb.append(HTML_FOOTER);
         return sb.toString();
     }
-    public String makeHtml (String sourceCode) {
-        return makeHtml(sourceCode, null);
+
+    // Returns the opening span tag for a token type
+    static String spanTag (TokenType type) {
+        switch (type) {
+            case KEYWORD:   return "<span class=\"kwd\">";
+            case LITERAL:   return "<span class=\"lit\">";
+            case COMMENT:   return "<span class=\"com\">";
+            case DICTIONARY: return "<span class=\"dic\">";
+            default:        return "<span class=\"pln\">";
+        }
     }
 
-    private void spanify (ArrayList<Token> tokens, StringBuilder sb) {
-        for (Token token : tokens) {
-            switch (token.type) {
-                case KEYWORD:   sb.append("<span class=\"kwd\">"); break;
-                case LITERAL:   sb.append("<span class=\"lit\">"); break;
-                case COMMENT:   sb.append("<span class=\"com\">"); break;
-                case TEXT:      sb.append("<span class=\"pln\">"); break;
+    // check each character to produce properly escaped html characters
+    static void escape (String s, StringBuilder sb) {
+        for (int i = 0, n = s.length(); i < n; ++i) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '<': sb.append("&lt;"); break;
+                case '>': sb.append("&gt;"); break;
+                case '&': sb.append("&amp;"); break;
+                default: sb.append(c);
             }
-            // sb.append(token.tok);
-
-            // check each character to produce properly escaped html characters
-            for (int i = 0, n = token.tok.length(); i < n; ++i) {
-                char c = token.tok.charAt(i);
-                switch (c) {
-                    case '<': sb.append("&lt;"); break;
-                    case '>': sb.append("&gt;"); break;
-                    case '&': sb.append("&amp;"); break;
-                    default: sb.append(c);
-                }
+        }
+    }
+
+    // Same as escape(String, ...), for the current token of a cursor
+    static void escape (TokenCursor token, StringBuilder sb) {
+        for (int i = 0, n = token.length(); i < n; ++i) {
+            char c = token.charAt(i);
+            switch (c) {
+                case '<': sb.append("&lt;"); break;
+                case '>': sb.append("&gt;"); break;
+                case '&': sb.append("&amp;"); break;
+                default: sb.append(c);
             }
-//            if (token.type != TokenType.TEXT)
-                sb.append("</span>");
         }
     }
 
@@ -350,11 +952,13 @@ public class Parser {
             "pre .kwd { color: navy; font-weight: bold }\n" +
             "pre .com { color: green; font-weight: bold } /* comment  */\n" +
             "pre .lit { color: blue; font-weight: bold; } /* literal  */\n" +
+            "pre .dic { color: #606 } /* dictionary name  */\n" +
             "@media print {\n" +
             "  pre.prettyprint { background-color: none }\n" +
             "  pre .kwd, code .kwd { color: navy; font-weight: bold }\n" +
             "  pre .com, code .com { color: green; font-style: bold }\n" +
             "  pre .lit, code .lit { color: blue; font-weight: bold; }\n" +
+            "  pre .dic, code .dic { color: #606 }\n" +
             "}";
 
     public static void main (String[] args) {
@@ -408,8 +1012,14 @@ public class Parser {
 
         String sourceCode = sb.toString();
         String html = new Parser(new StringMatcher(stats), stats).makeHtml(sourceCode, cssFile);
-        String html2 = new Parser(new NaiveMatcher(stats), stats).makeHtml(sourceCode, cssFile);
-        assert(html2.equals(html));
+
+        // cross-check against the naive matcher (only when assertions are enabled, since this doubles startup cost)
+        boolean checkNaive = false;
+        assert(checkNaive = true);
+        if (checkNaive) {
+            String html2 = new Parser(new NaiveMatcher(stats), stats).makeHtml(sourceCode, cssFile);
+            assert(html2.equals(html));
+        }
         try (BufferedWriter writer = new BufferedWriter(new FileWriter(outputFile))) {
             writer.write(html);
         } catch (FileNotFoundException e) {
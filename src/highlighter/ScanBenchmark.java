@@ -0,0 +1,121 @@
+package highlighter;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Benchmarks Parser.parse with char scanning disabled, and with each CharScanner backend (scalar, indexOf and the
+ * Vector API one), over all .java files in a directory. Also checks that they all produce identical tokens, and
+ * measures each parser's main scanner on its own (stopping at every char that can start a token). The last row is the
+ * indexOf parser with the other setting of Parser.USE_BATCH_MATCHING, so both matching paths are checked and timed.
+ *
+ * The Vector API backend is only measured if it's available, ie. src-vector was compiled and the JVM was started with
+ * --add-modules jdk.incubator.vector (see VectorCharScanner).
+ *
+ * usage: ScanBenchmark <source dir> [<iterations>]
+ */
+public class ScanBenchmark {
+    static void collect (File dir, List<String> sources) throws IOException {
+        File[] files = dir.listFiles();
+        if (files == null)
+            return;
+        for (File file : files) {
+            if (file.isDirectory()) {
+                collect(file, sources);
+            } else if (file.getName().endsWith(".java")) {
+                StringBuilder sb = new StringBuilder();
+                try (Reader reader = new FileReader(file)) {
+                    Htmlify.readFully(reader, sb);
+                }
+                sources.add(sb.toString());
+            }
+        }
+    }
+
+    static String tokenString (List<Parser.Token> tokens) {
+        StringBuilder sb = new StringBuilder();
+        for (Parser.Token token : tokens)
+            sb.append(token.type.ordinal()).append(token.tok.length()).append(':').append(token.tok);
+        return sb.toString();
+    }
+
+    // Parses all sources `iterations` times and returns the throughput in MB/s (source chars / 1e6 per second)
+    static double run (Parser parser, List<String> sources, int iterations) {
+        long chars = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; ++i) {
+            for (String source : sources) {
+                parser.parse(source);
+                chars += source.length();
+            }
+        }
+        return chars / 1e6 / ((System.nanoTime() - start) * 1e-9);
+    }
+
+    // Runs the parser's main scanner over all sources `iterations` times and returns the throughput in MB/s
+    static double runScan (Parser parser, List<String> sources, int iterations) {
+        long chars = 0;
+        int stops = 0;
+        long start = System.nanoTime();
+        for (int k = 0; k < iterations; ++k) {
+            for (String source : sources) {
+                for (int i = 0, n = source.length(); (i = parser.mainScanner.next(source, i)) < n; ++i)
+                    ++stops;
+                parser.mainScanner.reset();
+                chars += source.length();
+            }
+        }
+        if (stops == 42)
+            System.out.print("");   // (keeps the loop from being optimized away)
+        return chars / 1e6 / ((System.nanoTime() - start) * 1e-9);
+    }
+
+    public static void main (String[] args) throws IOException {
+        if (args.length != 1 && args.length != 2) {
+            System.err.println("usage: ScanBenchmark <source dir> [<iterations>]");
+            System.exit(-1);
+        }
+        int iterations = args.length == 2 ? Integer.parseInt(args[1]) : 10;
+        List<String> sources = new ArrayList<>();
+        collect(new File(args[0]), sources);
+
+        Stats stats = new FastStats();
+        String[] names = { "unscanned", "scalar", "indexOf", "vector" };
+        int[] backends = { CharScanner.SCALAR, CharScanner.SCALAR, CharScanner.INDEX_OF, CharScanner.VECTOR };
+        int count = CharScanner.isVectorAvailable() ? names.length : names.length - 1;
+        if (count < names.length)
+            System.out.println("Vector API backend not available (needs --add-modules jdk.incubator.vector)");
+        Parser[] parsers = new Parser[count + 1];
+        for (int i = 0; i < count; ++i) {
+            parsers[i] = new Parser(new StringMatcher(stats), stats);
+            parsers[i].setScanning(i > 0, backends[i]);
+        }
+        parsers[count] = new Parser(new StringMatcher(stats), stats);
+        parsers[count].setScanning(true, CharScanner.INDEX_OF);
+        parsers[count].setBatchMatching(!Parser.USE_BATCH_MATCHING);
+
+        int mismatches = 0;
+        for (String source : sources) {
+            String expected = tokenString(parsers[0].parse(source));
+            for (int i = 1; i < parsers.length; ++i) {
+                if (!tokenString(parsers[i].parse(source)).equals(expected))
+                    ++mismatches;
+            }
+        }
+        System.out.printf("%d files, %d mismatches\n", sources.size(), mismatches);
+
+        for (Parser parser : parsers) {     // warmup
+            run(parser, sources, Math.max(1, iterations / 2));
+            runScan(parser, sources, Math.max(1, iterations / 2));
+        }
+        System.out.println("            parse        main scanner only");
+        for (int i = 0; i < parsers.length; ++i) {
+            String name = i < count ? names[i] : Parser.USE_BATCH_MATCHING ? "unbatched" : "batched";
+            System.out.printf("%-10s  %8.2f MB/s", name, run(parsers[i], sources, iterations));
+            if (i > 0)
+                System.out.printf("  %8.2f MB/s", runScan(parsers[i], sources, iterations));
+            System.out.println();
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package highlighter;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.PriorityQueue;
+
+/**
+ * Keeps the N slowest files of an Htmlify run, with a per-phase breakdown for each (read, parse, render and write
+ * time, source size, token count and output size), and a histogram of per-file throughput over all files.
+ *
+ * The slowest files are kept in a min-heap of size N, so recording a file is O(log N) and memory doesn't grow with
+ * the number of files. The histogram buckets are powers of two of bytes per ms.
+ *
+ * The csv output (writeCsv) lists the full input paths, so that pathological inputs can be copied straight into a
+ * benchmark corpus.
+ *
+ * Thread-safe.
+ */
+public class SlowFileReport {
+    public static class Entry {
+        public final String name;
+        public final long totalNanos;
+        public final long readNanos, parseNanos, renderNanos, writeNanos;   // -1 if not measured (streamed files)
+        public final long sourceBytes;
+        public final int tokens;            // -1 if not counted
+        public final long outputChars;      // -1 if not counted
+
+        public Entry (String name, long totalNanos, long readNanos, long parseNanos, long renderNanos, long writeNanos,
+                      long sourceBytes, int tokens, long outputChars) {
+            this.name = name;
+            this.totalNanos = totalNanos;
+            this.readNanos = readNanos;
+            this.parseNanos = parseNanos;
+            this.renderNanos = renderNanos;
+            this.writeNanos = writeNanos;
+            this.sourceBytes = sourceBytes;
+            this.tokens = tokens;
+            this.outputChars = outputChars;
+        }
+
+        // Source bytes per ms
+        public double throughput () {
+            return sourceBytes / Math.max(totalNanos * 1e-6, 1e-6);
+        }
+    }
+
+    static final int HISTOGRAM_BUCKETS = 32;    // bucket i counts files with throughput in [2^i, 2^(i+1)) bytes / ms
+
+    private static final Comparator<Entry> BY_TIME = new Comparator<Entry>() {
+        @Override
+        public int compare (Entry a, Entry b) {
+            return Long.compare(a.totalNanos, b.totalNanos);
+        }
+    };
+
+    private final int capacity;
+    private final PriorityQueue<Entry> slowest;
+    private final long[] histogram = new long[HISTOGRAM_BUCKETS];
+    private long files = 0;
+
+    public SlowFileReport (int capacity) {
+        this.capacity = capacity;
+        this.slowest = new PriorityQueue<>(Math.max(capacity, 1), BY_TIME);
+    }
+
+    public synchronized void record (Entry entry) {
+        ++files;
+        double throughput = entry.throughput();
+        int bucket = throughput < 1 ? 0 : 63 - Long.numberOfLeadingZeros((long)throughput);
+        ++histogram[Math.min(bucket, HISTOGRAM_BUCKETS - 1)];
+        if (capacity <= 0)
+            return;
+        if (slowest.size() < capacity) {
+            slowest.add(entry);
+        } else if (entry.totalNanos > slowest.peek().totalNanos) {
+            slowest.poll();
+            slowest.add(entry);
+        }
+    }
+
+    // Returns the slowest files, slowest first
+    public synchronized List<Entry> getSlowest () {
+        List<Entry> entries = new ArrayList<>(slowest);
+        Collections.sort(entries, Collections.reverseOrder(BY_TIME));
+        return entries;
+    }
+
+    private static String ms (long nanos) {
+        return nanos < 0 ? "-" : String.format(Locale.ROOT, "%.2f", nanos * 1e-6);
+    }
+
+    public synchronized String getReport () {
+        StringBuilder sb = new StringBuilder();
+        List<Entry> entries = getSlowest();
+        sb.append(String.format("Slowest %d of %d files (ms):\n", entries.size(), files));
+        sb.append(String.format("%10s %8s %8s %8s %8s %10s %8s %10s %10s  %s\n", "total", "read", "parse", "render",
+                "write", "bytes", "tokens", "output", "bytes/ms", "file"));
+        for (Entry e : entries) {
+            sb.append(String.format("%10s %8s %8s %8s %8s %10d %8s %10s %10.0f  %s\n", ms(e.totalNanos),
+                    ms(e.readNanos), ms(e.parseNanos), ms(e.renderNanos), ms(e.writeNanos), e.sourceBytes,
+                    e.tokens < 0 ? "-" : Integer.toString(e.tokens),
+                    e.outputChars < 0 ? "-" : Long.toString(e.outputChars), e.throughput(), e.name));
+        }
+        sb.append("Throughput histogram (source bytes / ms):");
+        long max = 0;
+        int first = HISTOGRAM_BUCKETS, last = -1;
+        for (int i = 0; i < HISTOGRAM_BUCKETS; ++i) {
+            if (histogram[i] != 0) {
+                max = Math.max(max, histogram[i]);
+                first = Math.min(first, i);
+                last = i;
+            }
+        }
+        for (int i = first; i <= last; ++i) {
+            int bar = (int)(histogram[i] * 40 / max);
+            sb.append(String.format("\n  %9d - %-9d %7d ", 1L << i, (1L << (i + 1)) - 1, histogram[i]));
+            for (int j = 0; j < bar; ++j)
+                sb.append('#');
+        }
+        return sb.toString();
+    }
+
+    private static String csvField (String s) {
+        if (s.indexOf(',') < 0 && s.indexOf('"') < 0 && s.indexOf('\n') < 0)
+            return s;
+        return "\"" + s.replace("\"", "\"\"") + "\"";
+    }
+
+    // Writes the slowest files as csv (times in ms; empty if not measured)
+    public void writeCsv (File file) throws IOException {
+        try (Writer out = new FileWriter(file)) {
+            out.write("file,total_ms,read_ms,parse_ms,render_ms,write_ms,source_bytes,tokens,output_chars," +
+                    "bytes_per_ms\n");
+            for (Entry e : getSlowest()) {
+                out.write(String.format(Locale.ROOT, "%s,%s,%s,%s,%s,%s,%d,%s,%s,%.1f\n", csvField(e.name),
+                        ms(e.totalNanos),
+                        e.readNanos < 0 ? "" : ms(e.readNanos), e.parseNanos < 0 ? "" : ms(e.parseNanos),
+                        e.renderNanos < 0 ? "" : ms(e.renderNanos), e.writeNanos < 0 ? "" : ms(e.writeNanos),
+                        e.sourceBytes, e.tokens < 0 ? "" : Integer.toString(e.tokens),
+                        e.outputChars < 0 ? "" : Long.toString(e.outputChars), e.throughput()));
+            }
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package highlighter;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watch mode for Htmlify (--watch): once the initial run is done, watches the source tree with a WatchService and
+ * re-highlights only the files that change, using the same (warm) Htmlify instance, ie. the same parsers, worker pool
+ * and JIT-compiled code, so an update costs about as much as the files it touches.
+ *
+ * Events are debounced: after the first event of a burst, events are collected until none have arrived for the
+ * debounce interval (or MAX_DEBOUNCE_FACTOR intervals have passed since the first one), so an editor's save (which
+ * can be a write, a rename and a delete) or a checkout touching many files is handled once. Each path is handled
+ * according to its state once the burst is over: a .java file that exists is re-highlighted, one that doesn't has
+ * its outputs deleted, a new directory is watched and its files highlighted, and a deleted directory's output
+ * directory is removed.
+ *
+ * After each burst, the save-to-output latency (from each changed file's modification time to its output being
+ * written) is reported.
+ */
+public class SourceWatcher {
+    static final int MAX_DEBOUNCE_FACTOR = 10;
+
+    private final Htmlify htmlify;
+    private final String rootPath;
+    private final String outputPath;
+    private final long debounceMs;
+    private final WatchService watcher;
+    private final Map<WatchKey, Path> keys = new HashMap<>();
+    private final Set<Path> watchedDirs = new HashSet<>();
+
+    // stats
+    private int bursts = 0;
+    private int updated = 0;
+    private int deleted = 0;
+
+    public SourceWatcher (Htmlify htmlify, String rootPath, String outputPath, long debounceMs) throws IOException {
+        this.htmlify = htmlify;
+        this.rootPath = rootPath;
+        this.outputPath = outputPath;
+        this.debounceMs = debounceMs;
+        this.watcher = FileSystems.getDefault().newWatchService();
+        registerTree(Paths.get(rootPath), null);
+    }
+
+    // Watches dir and every directory below it. If found isn't null, the .java files found are added to it.
+    private void registerTree (Path dir, final Collection<File> found) throws IOException {
+        Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory (Path dir, BasicFileAttributes attrs) throws IOException {
+                if (watchedDirs.add(dir))
+                    keys.put(dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                            StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE), dir);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile (Path file, BasicFileAttributes attrs) {
+                if (found != null && attrs.isRegularFile() && file.toString().endsWith(".java"))
+                    found.add(file.toFile());
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    // Waits for the next burst of events, and returns the paths they touched (or null if every watched directory is
+    // gone). rescan is set if events were lost.
+    private Set<Path> nextBurst (boolean[] rescan) throws InterruptedException {
+        Set<Path> paths = new LinkedHashSet<>();
+        WatchKey key = watcher.take();
+        long first = System.nanoTime();
+        while (key != null) {
+            Path dir = keys.get(key);
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW)
+                    rescan[0] = true;
+                else if (dir != null)
+                    paths.add(dir.resolve((Path)event.context()));
+            }
+            if (!key.reset()) {
+                keys.remove(key);
+                if (dir != null)
+                    paths.add(dir);     // (the directory itself was deleted)
+                if (keys.isEmpty())
+                    return null;
+            }
+            long waited = (System.nanoTime() - first) / 1000000;
+            long remaining = debounceMs * MAX_DEBOUNCE_FACTOR - waited;
+            key = remaining > 0 ? watcher.poll(Math.min(debounceMs, remaining), TimeUnit.MILLISECONDS) : null;
+        }
+        return paths;
+    }
+
+    // Watches the tree until every watched directory has been deleted (or the thread is interrupted)
+    public void run () {
+        System.out.printf("Watching '%s' for changes (debounce %d ms)\n", rootPath, debounceMs);
+        try {
+            while (true) {
+                boolean[] rescan = { false };
+                Set<Path> paths = nextBurst(rescan);
+                if (paths == null) {
+                    System.out.printf("'%s' was deleted, no longer watching\n", rootPath);
+                    return;
+                }
+                long received = System.currentTimeMillis();
+                long start = System.nanoTime();
+                List<File> changed = new ArrayList<>();
+                int deletedNow = 0;
+                if (rescan[0]) {
+                    // events were lost: re-highlight everything
+                    System.out.println("Watch: event queue overflowed, rescanning the whole tree");
+                    registerTree(Paths.get(rootPath), changed);
+                    paths.clear();
+                }
+                for (Path path : paths) {
+                    if (Files.isDirectory(path)) {
+                        if (!watchedDirs.contains(path))
+                            registerTree(path, changed);    // new (or moved in) directory
+                    } else if (Files.exists(path)) {
+                        if (path.toString().endsWith(".java"))
+                            changed.add(path.toFile());
+                    } else if (watchedDirs.remove(path)) {
+                        if (htmlify.deleteOutputDir(path.toFile(), rootPath, outputPath))
+                            ++deletedNow;
+                    } else if (path.toString().endsWith(".java")) {
+                        if (htmlify.deleteOutputs(path.toFile(), rootPath, outputPath))
+                            ++deletedNow;
+                    }
+                }
+                if (changed.isEmpty() && deletedNow == 0)
+                    continue;
+
+                long[] modified = new long[changed.size()];
+                for (int i = 0; i < modified.length; ++i)
+                    modified[i] = changed.get(i).lastModified();
+                htmlify.updateFiles(changed, rootPath, outputPath);
+                long done = System.currentTimeMillis();
+                report(changed.size(), deletedNow, (System.nanoTime() - start) * 1e-6, modified, received, done);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            System.err.printf("Error watching '%s'\n", rootPath);
+            e.printStackTrace();
+        } finally {
+            try {
+                watcher.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    // Prints the results of a burst. modified holds the modification times of the changed files (0 if unknown, eg.
+    // deleted since); deleted outputs (of files or whole directories) count from when the burst was received.
+    private void report (int changed, int deletedNow, double ms, long[] modified, long received, long done) {
+        ++bursts;
+        updated += changed;
+        deleted += deletedNow;
+        long[] latencies = new long[modified.length + deletedNow];
+        for (int i = 0; i < modified.length; ++i)
+            latencies[i] = done - (modified[i] > 0 ? Math.min(modified[i], received) : received);
+        for (int i = modified.length; i < latencies.length; ++i)
+            latencies[i] = done - received;
+        Arrays.sort(latencies);
+        System.out.printf("Watch: updated %d files, deleted %d outputs in %.2f ms; save to output %d ms (median), %d ms " +
+                        "(max); %d updates, %d deletions over %d bursts so far\n", changed, deletedNow, ms,
+                latencies[latencies.length / 2], latencies[latencies.length - 1], updated, deleted, bursts);
+    }
+}
@@ -15,15 +15,19 @@ public interface Stats {
     public void beginHtmlGen ();
     public void endHtmlGen ();
     public void beginFileRead ();
-    public void endFileRead ();
+    public void endFileRead (long bytes);
     public void beginFileWrite ();
     public void endFileWrite ();
+    public void beginCompress ();
+    public void endCompress (long rawBytes, long compressedBytes);
     public void beginProcessingFile ();
     public void endProcessingFile ();
     public void beginProcessingDir ();
     public void endProcessingDir ();
     public void startHtmlify ();
     public void endHtmlify ();
+    public void recordIdleTail (long nanos);   // time a worker sat idle between its last task and the end of the run
+    public void recordDeadlineExceeded ();     // a file took too long to highlight, and was written as plain text
 
     public String getStats ();
     public String getAdjustedStats ();
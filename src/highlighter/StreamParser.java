@@ -0,0 +1,126 @@
+package highlighter;
+
+import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+
+/**
+ * Generates html (or any TokenRenderer's output) for inputs of any size (eg. multi-gigabyte generated sources) by
+ * parsing them in fixed-size chunks, writing out the output for each chunk as it goes. Memory use is bounded by the
+ * chunk size (plus the longest single identifier / number in the input), not the input size.
+ *
+ * Each chunk is appended to a window holding the unparsed tail of the previous chunk, and parsed with
+ * Parser.parseTokens(), which stops early enough that the tokens it produces match what parsing the whole input at
+ * once would have produced, and carries its lexer state (an open comment / string, or text that hasn't been
+ * classified yet) over to the next window. A token that doesn't end in the window (eg. a long comment) is passed on
+ * as partial tokens (see TokenCursor.open). The output is byte-for-byte identical to rendering the whole input at once
+ * (eg. Parser.makeHtml()).
+ *
+ * usage: StreamParser <input file> <output file> [<chunk size>]
+ */
+public class StreamParser {
+    public static final int DEFAULT_CHUNK_SIZE = 1 << 16;
+
+    private final Parser parser;
+    private final int chunkSize;
+
+    public StreamParser (Parser parser, int chunkSize) {
+        if (chunkSize < 1)
+            throw new IllegalArgumentException("chunk size must be positive");
+        this.parser = parser;
+        this.chunkSize = chunkSize;
+    }
+    public StreamParser (Parser parser) {
+        this(parser, DEFAULT_CHUNK_SIZE);
+    }
+
+    // Writes the html for everything read from in to out. Neither is closed.
+    public void makeHtml (Reader in, Writer out, String cssLink, boolean compact) throws IOException {
+        render(in, new TokenRenderer.Html(cssLink, compact, out));
+        out.flush();
+    }
+
+    // Renders everything read from in, a window at a time: each window's tokens are passed to every renderer, and the
+    // renderers are then flushed (see TokenRenderer.flush), so their output is written as parsing goes. The renderers
+    // are finished and flushed at the end. in isn't closed. (Rendering is timed as html generation.)
+    public void render (Reader in, TokenRenderer... renderers) throws IOException {
+        StringBuilder window = new StringBuilder();
+        char[] buf = new char[chunkSize];
+
+        parser.tokens = new ArrayList<Parser.Token>();
+        parser.store = null;
+        parser.base = 0;
+        parser.resumeTags = 0;
+        parser.prev = parser.start = 0;
+        parser.pieceOpen = false;
+
+        int i = 0;
+        int want = chunkSize;
+        boolean eof = false;
+        try {
+            while (!eof) {
+                while (window.length() - i < want) {
+                    int n = in.read(buf, 0, buf.length);
+                    if (n < 0) {
+                        eof = true;
+                        break;
+                    }
+                    window.append(buf, 0, n);
+                }
+                int stop = parser.parseTokens(window.toString(), i, eof);
+
+                parser.stats.beginHtmlGen();
+                TokenCursor tokens = new TokenCursor.ListCursor(parser.tokens);
+                while (tokens.next()) {
+                    for (TokenRenderer renderer : renderers)
+                        renderer.token(tokens);
+                }
+                for (TokenRenderer renderer : renderers)
+                    renderer.flush();
+                parser.tokens.clear();
+                parser.stats.endHtmlGen();
+
+                // Keep one char before the stop position (the parser looks back one char to check word boundaries)
+                // and drop the rest. If nothing could be parsed (a token longer than the window), read more first.
+                want = stop > i ? chunkSize : want + chunkSize;
+                int drop = Math.max(stop - 1, 0);
+                window.delete(0, drop);
+                parser.base += drop;
+                parser.prev -= drop;
+                parser.start -= drop;
+                i = stop - drop;
+            }
+        } finally {
+            parser.tokens = null;
+        }
+        for (TokenRenderer renderer : renderers) {
+            renderer.finish();
+            renderer.flush();
+        }
+    }
+
+    // Same as makeHtml(Reader, ...), reading bytes in the given charset from a channel
+    public void makeHtml (ReadableByteChannel in, Charset charset, Writer out, String cssLink, boolean compact)
+            throws IOException {
+        makeHtml(Channels.newReader(in, charset.newDecoder(), chunkSize), out, cssLink, compact);
+    }
+
+    public static void main (String[] args) {
+        if (args.length != 2 && args.length != 3) {
+            System.err.println("usage: StreamParser <input file> <output file> [<chunk size>]");
+            System.exit(-1);
+        }
+        int chunkSize = args.length == 3 ? Integer.parseInt(args[2]) : DEFAULT_CHUNK_SIZE;
+        Stats stats = new FastStats();
+        StreamParser streamParser = new StreamParser(new Parser(new StringMatcher(stats), stats), chunkSize);
+        try (Reader in = new FileReader(args[0]);
+             Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(args[1])))) {
+            streamParser.makeHtml(in, out, null, false);
+        } catch (IOException e) {
+            System.err.printf("Error processing '%s'\n", args[0]);
+            e.printStackTrace();
+        }
+    }
+}
@@ -1,8 +1,14 @@
 package highlighter;
 
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
 
 /**
  * Created by Seiji on 4/8/15.
@@ -12,8 +18,9 @@ import java.util.Map;
  * perfectly suitable for building a simple text parser, and is quite a bit easier to use than trying to wrangle java's
  * regex utilites into a parser framework (which is not their intended purpose, and doesn't work very well).
  *
- * Internally, this is implemented as a trie (for efficiency's sake), and uses nested hashmaps to construct the parse
- * rules via the TrieBuilder class (since the Trie data structure is immutable).
+ * Internally, this is implemented as a trie (for efficiency's sake), which is built from the sorted rules by the
+ * TrieBuilder class (since the Trie data structure is immutable). This scales to large rule sets, eg. a dictionary of
+ * ~100k API names loaded with readDictionary() and addAll(); getBuildStats() reports the trie's size and build time.
  *
  * Usage is simple: you create a StringMatcher instance, and define several matcher rules for it to operate on:
  *    StringMatcher matcher = new StringMatcher();
@@ -26,6 +33,10 @@ import java.util.Map;
  * time you use call match(), if it hasn't been initialized already)
  *    matcher.rebuild();
  *
+ * If a snapshot file is set (see MatcherSnapshot, or the highlighter.snapshot system property), rebuild() first tries
+ * to load the trie from it, and only builds it from the rules (and writes a new snapshot) if the snapshot is missing or
+ * was built from a different set of rules.
+ *
  * Matching is done by passing in a string and a start index. The matcher will match as far as possible, and return the tags
  * that it found at the end of the sequence.
  *    if (matcher.match(s, i) & EXPECTED_TAG != 0)
@@ -57,76 +68,235 @@ public class StringMatcher implements Matcher {
 
     private final Stats stats;
 
-    // Utility class used internally to store match rules and rebuild the trie
-    // This is a mutable (but slightly inefficient) implementation of the StringMatcher, and stores the same data
-    // as the immutable, but much more efficient trie data structure.
+    // Builds the (immutable) trie from a set of rules, without recursion or per-node maps: the rules are sorted, so
+    // each node's children are added in char order, and a node is complete (and can be built) as soon as a rule that
+    // doesn't extend it is reached. Only the nodes on the path of the last rule are open at any time, each collecting
+    // its children in a scratch list for its depth.
     static class TrieBuilder {
-        public final Map<Character, TrieBuilder> values = new HashMap<>();
-        public char min = Character.MAX_VALUE;
-        public char max = Character.MIN_VALUE;
-        public int tags = 0;
-
-        void add (String s, int i, int tag) {
-            if (i >= s.length()) {
-                tags |= tag;
-                return;
+        static final int INSERTION_SORT_THRESHOLD = 12;     // ranges shorter than this are insertion sorted
+
+        private char[][] keys = new char[16][];     // per depth: chars of the open node's children so far
+        private Trie[][] children = new Trie[16][]; // per depth: the open node's children so far
+        private int[] counts = new int[16];         // per depth: number of children so far
+        private int[] tags = new int[16];           // per depth: tags of the open node
+
+        Trie build (Rules rules) {
+            int[] order = new int[rules.size()];
+            for (int i = 0; i < order.length; ++i)
+                order[i] = i;
+            sort(order, rules.strings);
+
+            String path = "";   // the last rule added, ie. the path of open nodes
+            int depth = 0;      // depth of the deepest open node
+            open(0);
+            for (int r : order) {
+                String s = rules.strings.get(r);
+                int common = 0;
+                for (int n = Math.min(depth, s.length()); common < n && s.charAt(common) == path.charAt(common); )
+                    ++common;
+                for (; depth > common; --depth)
+                    addChild(depth - 1, path.charAt(depth - 1), close(depth));
+                while (depth < s.length())
+                    open(++depth);
+                tags[depth] |= rules.tags[r];
+                path = s;
             }
-            char c = s.charAt(i);
-            if (c > max)   max = c;
-            if (c < min)   min = c;
-            if (!values.containsKey(c))
-                values.put(c, new TrieBuilder());
-            values.get(c).add(s, i+1, tag);
+            for (; depth > 0; --depth)
+                addChild(depth - 1, path.charAt(depth - 1), close(depth));
+            return close(0);
         }
-        void add (String s, int tag) {
-            add(s, 0, tag);
+
+        // Sorts rule indices by their strings with a multikey (3-way radix) quicksort: ranges are partitioned on one
+        // char at a time, starting from the depth at which their strings can differ, so the long prefixes shared by
+        // dictionary entries aren't compared over and over again. Uses an explicit stack rather than recursion.
+        static void sort (int[] order, List<String> strings) {
+            int[] stack = new int[3 * 32];
+            int top = 0;
+            stack[top++] = 0;
+            stack[top++] = order.length;
+            stack[top++] = 0;
+            while (top > 0) {
+                int depth = stack[--top];
+                int hi = stack[--top];
+                int lo = stack[--top];
+                if (hi - lo < INSERTION_SORT_THRESHOLD) {
+                    insertionSort(order, strings, lo, hi, depth);
+                    continue;
+                }
+                // [lo, lt) < pivot, [lt, i) == pivot, [gt, hi) > pivot (at depth)
+                int pivot = charAt(strings.get(order[lo + (hi - lo) / 2]), depth);
+                int lt = lo, gt = hi;
+                for (int i = lo; i < gt; ) {
+                    int c = charAt(strings.get(order[i]), depth);
+                    if (c < pivot)
+                        swap(order, lt++, i++);
+                    else if (c > pivot)
+                        swap(order, i, --gt);
+                    else
+                        ++i;
+                }
+                if (top + 9 > stack.length)
+                    stack = Arrays.copyOf(stack, stack.length * 2);
+                stack[top++] = lo;
+                stack[top++] = lt;
+                stack[top++] = depth;
+                stack[top++] = gt;
+                stack[top++] = hi;
+                stack[top++] = depth;
+                if (pivot >= 0) {   // (strings that end at depth are all equal)
+                    stack[top++] = lt;
+                    stack[top++] = gt;
+                    stack[top++] = depth + 1;
+                }
+            }
+        }
+
+        // The char at i, or -1 past the end of s (so shorter strings sort before their extensions)
+        private static int charAt (String s, int i) {
+            return i < s.length() ? s.charAt(i) : -1;
+        }
+
+        private static void swap (int[] order, int i, int j) {
+            int t = order[i];
+            order[i] = order[j];
+            order[j] = t;
+        }
+
+        // Sorts order[lo, hi), whose strings all share their first depth chars
+        private static void insertionSort (int[] order, List<String> strings, int lo, int hi, int depth) {
+            for (int i = lo + 1; i < hi; ++i) {
+                int r = order[i];
+                String s = strings.get(r);
+                int j = i;
+                for (; j > lo && compare(strings.get(order[j - 1]), s, depth) > 0; --j)
+                    order[j] = order[j - 1];
+                order[j] = r;
+            }
+        }
+
+        private static int compare (String a, String b, int from) {
+            for (int i = from, n = Math.min(a.length(), b.length()); i < n; ++i) {
+                int d = a.charAt(i) - b.charAt(i);
+                if (d != 0)
+                    return d;
+            }
+            return a.length() - b.length();
+        }
+
+        private void open (int depth) {
+            if (depth == counts.length) {
+                keys = Arrays.copyOf(keys, depth * 2);
+                children = Arrays.copyOf(children, depth * 2);
+                counts = Arrays.copyOf(counts, depth * 2);
+                tags = Arrays.copyOf(tags, depth * 2);
+            }
+            if (keys[depth] == null) {
+                keys[depth] = new char[4];
+                children[depth] = new Trie[4];
+            }
+            counts[depth] = 0;
+            tags[depth] = 0;
+        }
+
+        private void addChild (int depth, char c, Trie child) {
+            int n = counts[depth]++;
+            if (n == keys[depth].length) {
+                keys[depth] = Arrays.copyOf(keys[depth], n * 2);
+                children[depth] = Arrays.copyOf(children[depth], n * 2);
+            }
+            keys[depth][n] = c;
+            children[depth][n] = child;
         }
 
-        public Trie build () {
-            return new Trie(this);
+        // Builds the open node at the given depth, dense or sparse depending on how its children's chars are spread
+        private Trie close (int depth) {
+            int n = counts[depth];
+            Trie[] next = children[depth];
+            if (n == 0)
+                return new Trie((char)0, null, null, 0, tags[depth]);
+            char[] chars = keys[depth];
+            char first = chars[0];
+            int span = chars[n - 1] - first + 1;
+            Trie node;
+            if (Trie.isDense(n, span, depth == 0)) {
+                Trie[] dense = new Trie[span];
+                for (int j = 0; j < n; ++j)
+                    dense[chars[j] - first] = next[j];
+                node = new Trie(first, null, dense, n, tags[depth]);
+            } else {
+                node = new Trie(first, Arrays.copyOf(chars, n), Arrays.copyOf(next, n), n, tags[depth]);
+            }
+            Arrays.fill(next, 0, n, null);
+            return node;
+        }
+    }
+
+    // The list of rules added via add(), in order. Adding a rule is cheap (the trie is only built if it can't be
+    // loaded from a snapshot), and the rules are fingerprinted so a stale snapshot can be detected.
+    static class Rules {
+        final ArrayList<String> strings = new ArrayList<>();
+        int[] tags = new int[64];
+        long fingerprint = MatcherSnapshot.FINGERPRINT_SEED;
+
+        void add (String s, int tag) {
+            if (strings.size() == tags.length)
+                tags = Arrays.copyOf(tags, tags.length * 2);
+            tags[strings.size()] = tag;
+            strings.add(s);
+            fingerprint = MatcherSnapshot.fingerprint(fingerprint, s, tag);
+        }
+        int size () {
+            return strings.size();
         }
     }
 
     // Internal data structure used to map strings to integer tags in a highly compact form.
     // Matching looks up the longest string sequence and returns its tags (which can be compared to an expected set of
     // tags to determine whether the match was successful or not).
+    //
+    // Each node's children are either dense (next is indexed by char - first, with null gaps) or sparse (next holds
+    // only the children, and keys their chars, sorted), whichever is smaller: a node whose children are a few chars
+    // spread over a wide range (eg. 'A' and 'z', common in large identifier dictionaries) would otherwise need a slot
+    // for every char in between. The root is dense unless that's very large, since every match starts there.
     static class Trie {
-        final char first;   // offset for the first char in this trie. char range == [first, first + next.length)
+        static final int DENSE_SLACK = 8;           // dense nodes may have up to count + DENSE_SLACK empty slots
+        static final int MAX_DENSE_ROOT = 1 << 12;  // the root is dense if it spans at most this many chars
+        static final int NODE_BYTES = 32;           // estimated size of a node (12 byte header, compressed oops)
+
+        final char first;   // (dense) offset for the first char in this trie. char range == [first, first + next.length)
+        final char[] keys;  // (sparse) chars of the children in next, in ascending order; null for dense nodes
         final Trie[] next;  // next elements in the trie
-        final int count;    // number of elements in the trie (cached). NOT equal to next.length
+        final int count;    // number of elements in the trie (cached). NOT equal to next.length for dense nodes
         final int tags;     // bitfield containing the tags that this character sequence is mapped to
 
-        private Trie () {
-            this.next = null;
-            this.first = 0;
-            this.tags = 0;
-            this.count = 0;
+        // Constructs a node directly from its fields (used by TrieBuilder and to load snapshots)
+        Trie (char first, char[] keys, Trie[] next, int count, int tags) {
+            this.first = first;
+            this.keys = keys;
+            this.next = next;
+            this.count = count;
+            this.tags = tags;
         }
 
-        // Trie must always (normally) be constructed from a TrieBuilder instance.
-        // This invokes recursive calls that construct the a trie from the (presumably) root TrieBuilder node.
-        public Trie (TrieBuilder b) {
-            assert((int)b.max > (int)b.min);
-            assert((int)b.max - (int)b.min >= 0);
-//            System.out.printf("%d %d %d\n", (int)b.max, (int)b.min, (int)(b.max - b.min));
-
-            if (b.values.size() == 0)
-                this.next = null;
-            else
-                this.next = new Trie[b.max - b.min + 1];
-            this.first = b.min;
-            this.tags = b.tags;
-            this.count = b.values.size();
+        // Returns true if a node with count children spanning span chars should be dense
+        static boolean isDense (int count, int span, boolean root) {
+            return span <= 2 * count + DENSE_SLACK || (root && span <= MAX_DENSE_ROOT);
+        }
 
-            for (Map.Entry<Character, TrieBuilder> e : b.values.entrySet()) {
-                next[e.getKey() - first] = new Trie(e.getValue());
-            }
+        // Returns the char of the child in next[j]
+        char childChar (int j) {
+            return keys != null ? keys[j] : (char)(first + j);
         }
+
         private Trie getNext (char c) {
-            int i = c - first;
-            if (next == null || i < 0 || i >= next.length)
+            if (next == null)
                 return null;
-            return next[i];
+            if (keys == null) {
+                int i = c - first;
+                return i >= 0 && i < next.length ? next[i] : null;
+            }
+            int i = Arrays.binarySearch(keys, c);
+            return i >= 0 ? next[i] : null;
         }
         public int match (String s, int i, StringMatcher matcher) {
             Trie trie = this;
@@ -168,7 +338,7 @@ public class StringMatcher implements Matcher {
             if (next != null) {
                 for (int i = 0; i < next.length; ++i) {
                     if (next[i] != null)
-                        next[i].toString((char)(i + first), sb, indent+1);
+                        next[i].toString(childChar(i), sb, indent+1);
                 }
             }
         }
@@ -180,14 +350,19 @@ public class StringMatcher implements Matcher {
             if (next != null) {
                 for (int i = 0; i < next.length; ++i) {
                     if (next[i] != null)
-                        next[i].toString((char)(i + first), sb, 1);
+                        next[i].toString(childChar(i), sb, 1);
                 }
             }
             return sb.toString();
         }
     }
-    TrieBuilder builder;    // mutable data structure used to rebuild the trie
+    Rules rules;            // rules added so far
     Trie trie = null;       // immutable, highly efficient data structure used to perform match lookups
+    long buildNanos = 0;    // time taken by the last rebuild()
+    boolean loaded = false; // (the last rebuild() loaded the trie from a snapshot)
+    MatchAutomaton automaton = null;    // built from trie on the first matchAll() call
+    boolean automatonBuilt = false;     // (automaton may be null after building if the rules can't be packed)
+    File snapshotFile = MatcherSnapshot.defaultSnapshotFile();
 
     // Temporary state from the last match() call
     int matched;
@@ -197,12 +372,17 @@ public class StringMatcher implements Matcher {
     // Construct a new StringMatcher
     public StringMatcher (Stats stats) {
         this.stats = stats;
-        this.builder = new TrieBuilder();
+        this.rules = new Rules();
     }
     public StringMatcher (StringMatcher matcher, Stats stats) {
         this.stats = stats;
-        this.builder = matcher.builder;
+        this.rules = matcher.rules;
         this.trie = matcher.trie;
+        this.buildNanos = matcher.buildNanos;
+        this.loaded = matcher.loaded;
+        this.automaton = matcher.automaton;
+        this.automatonBuilt = matcher.automatonBuilt;
+        this.snapshotFile = matcher.snapshotFile;
     }
     @Override
     public Matcher cloneWith (Stats stats) {
@@ -212,22 +392,32 @@ public class StringMatcher implements Matcher {
     // Construct a new StringMatcher and insert the following strings with the given tag
     public StringMatcher(Stats stats, String[] strings, int tag) {
         this.stats = stats;
-        builder = new TrieBuilder();
+        rules = new Rules();
         for (String s : strings)
-            builder.add(s, tag);
+            rules.add(s, tag);
     }
     // Construct a new StringMatcher and insert the following strings with the given tag
     public StringMatcher (Stats stats, ArrayList<String> strings, int tag) {
         this.stats = stats;
-        builder = new TrieBuilder();
+        rules = new Rules();
         for (String s : strings)
-            builder.add(s, tag);
+            rules.add(s, tag);
+    }
+
+    // Sets the snapshot file used by rebuild() (null disables snapshots)
+    public void setSnapshotFile (File snapshotFile) {
+        this.snapshotFile = snapshotFile;
+    }
+
+    // Returns the fingerprint of the current rule set
+    public long fingerprint () {
+        return rules.fingerprint;
     }
 
     // Add a rule to match the following string to the given tag
     public void add (String s, int tag) {
         stats.beginTrieInit();
-        builder.add(s, tag);
+        rules.add(s, tag);
         stats.endTrieInit();
     }
 
@@ -237,16 +427,90 @@ public class StringMatcher implements Matcher {
             add(s, tag);
     }
 
+    // Adds a rule for each of the given strings with the given tag, eg. a large dictionary (see readDictionary)
+    public void addAll (Collection<String> strings, int tag) {
+        stats.beginTrieInit();
+        for (String s : strings)
+            rules.add(s, tag);
+        stats.endTrieInit();
+    }
+
+    // Reads a dictionary file for addAll(): one entry per line (surrounding whitespace is ignored), skipping blank
+    // lines and lines starting with '#'
+    public static List<String> readDictionary (File file) throws IOException {
+        List<String> entries = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (!line.isEmpty() && !line.startsWith("#"))
+                    entries.add(line);
+            }
+        }
+        return entries;
+    }
+
     // Rebuilds the internal trie structure from the current set of rules.
     // Should call this once, *after* all calls to add(...) have been made, but before calling match.
     // If match() has been called but additional rules have been added since the last call, call this to update
     // the internal data structure (without this, calls to add() have no effect after the first call).
     public void rebuild() {
         stats.beginTrieInit();
-        trie = builder.build();
+        long start = System.nanoTime();
+        Trie snapshot = snapshotFile != null ? MatcherSnapshot.load(snapshotFile, rules.fingerprint) : null;
+        loaded = snapshot != null;
+        if (loaded) {
+            trie = snapshot;
+        } else {
+            trie = new TrieBuilder().build(rules);
+            if (snapshotFile != null)
+                MatcherSnapshot.save(snapshotFile, trie, rules.fingerprint);
+        }
+        buildNanos = System.nanoTime() - start;
+        automaton = null;
+        automatonBuilt = false;
         stats.endTrieInit();
     }
 
+    // Returns the number of nodes, dense / sparse nodes, estimated heap footprint and build time of the trie (and of
+    // the matchAll() automaton, if it's been built)
+    public String getBuildStats () {
+        if (trie == null)
+            rebuild();
+        int nodes = 0;
+        int sparse = 0;
+        long bytes = 0;
+        ArrayDeque<Trie> stack = new ArrayDeque<>();
+        stack.push(trie);
+        while (!stack.isEmpty()) {
+            Trie node = stack.pop();
+            ++nodes;
+            bytes += Trie.NODE_BYTES;
+            if (node.next == null)
+                continue;
+            bytes += arrayBytes(node.next.length, 4);
+            if (node.keys != null) {
+                ++sparse;
+                bytes += arrayBytes(node.keys.length, 2);
+            }
+            for (Trie child : node.next) {
+                if (child != null)
+                    stack.push(child);
+            }
+        }
+        String s = String.format("Matcher: %d rules, %d trie nodes (%d dense, %d sparse), ~%.2f MB, %s in %.2f ms",
+                rules.size(), nodes, nodes - sparse, sparse, bytes / (double)(1 << 20),
+                loaded ? "loaded from snapshot" : "built", buildNanos * 1e-6);
+        if (automaton != null)
+            s += String.format("; automaton: %d nodes, ~%.2f MB", automaton.size(), automaton.footprint() / (double)(1 << 20));
+        return s;
+    }
+
+    // Estimated size of an array on the heap (16 byte header, 8 byte alignment)
+    static long arrayBytes (int length, int elementBytes) {
+        return (16 + (long)length * elementBytes + 7) & ~7L;
+    }
+
     // Checks the following string starting at index i against the string matcher, matching as far as possible and
     // returning the tags from this full or partial match.
     public int match (String s, int i)  {
@@ -266,6 +530,27 @@ public class StringMatcher implements Matcher {
         }
     }
 
+    // Classifies every position of s in one pass (see Matcher.matchAll). Uses an Aho-Corasick automaton built from the
+    // trie, falling back to one match() call per position if the rules' tags don't fit in the packed results.
+    public void matchAll (String s, int[] out) {
+        if (trie == null)
+            rebuild();
+        if (!automatonBuilt) {
+            stats.beginTrieInit();
+            automaton = MatchAutomaton.build(trie);
+            automatonBuilt = true;
+            stats.endTrieInit();
+        }
+        if (automaton == null) {
+            for (int i = 0, n = s.length(); i < n; ++i)
+                out[i] = Matcher.packMatch(match(s, i), matched);
+            return;
+        }
+        stats.beginTrieMatch();
+        automaton.matchAll(s, out);
+        stats.endTrieMatch();
+    }
+
     // Returns the number of chars matched from the last call to match()
     public int matchedChars () {
         return matched;
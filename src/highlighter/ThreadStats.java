@@ -4,6 +4,8 @@ package highlighter;
  * Created by Seiji on 4/12/15.
  */
 public class ThreadStats implements Stats {
+    public AllocationStats allocations = null;     // if set, allocated bytes are tracked per phase
+
     @Override
     public void beginParserInit() {}
 
@@ -17,34 +19,97 @@ public class ThreadStats implements Stats {
     public void endTrieInit() {}
 
     @Override
-    public void beginTrieMatch() {}
+    public void beginTrieMatch() {
+        if (allocations != null)
+            allocations.begin(AllocationStats.TRIE_MATCH);
+    }
+
+    @Override
+    public void endTrieMatch() {
+        if (allocations != null)
+            allocations.end(AllocationStats.TRIE_MATCH);
+    }
 
     @Override
-    public void endTrieMatch() {}
+    public void beginParse() {
+        if (allocations != null)
+            allocations.begin(AllocationStats.PARSE);
+    }
+
+    @Override
+    public void endParse() {
+        if (allocations != null)
+            allocations.end(AllocationStats.PARSE);
+    }
 
     @Override
-    public void beginParse() {}
+    public void beginHtmlGen() {
+        if (allocations != null)
+            allocations.begin(AllocationStats.HTML_GEN);
+    }
 
     @Override
-    public void endParse() {}
+    public void endHtmlGen() {
+        if (allocations != null)
+            allocations.end(AllocationStats.HTML_GEN);
+    }
+
+    // Totals that other threads may sample while this thread is running (see WorkerController) are volatile; each is
+    // only ever written by the thread that owns this object.
+    private long fileReadStart = 0;
+    private volatile long fileReadTime = 0;
+    private long bytesRead = 0;
 
     @Override
-    public void beginHtmlGen() {}
+    public void beginFileRead() {
+        if (allocations != null)
+            allocations.begin(AllocationStats.FILE_READ);
+        fileReadStart = System.nanoTime();
+    }
 
     @Override
-    public void endHtmlGen() {}
+    public void endFileRead(long bytes) {
+        fileReadTime += System.nanoTime() - fileReadStart;
+        bytesRead += bytes;
+        if (allocations != null) {
+            allocations.end(AllocationStats.FILE_READ);
+            allocations.recordFile(bytes);
+        }
+    }
+
+    private long fileWriteStart = 0;
+    private volatile long fileWriteTime = 0;
 
     @Override
-    public void beginFileRead() {}
+    public void beginFileWrite() {
+        if (allocations != null)
+            allocations.begin(AllocationStats.FILE_WRITE);
+        fileWriteStart = System.nanoTime();
+    }
 
     @Override
-    public void endFileRead() {}
+    public void endFileWrite() {
+        fileWriteTime += System.nanoTime() - fileWriteStart;
+        if (allocations != null)
+            allocations.end(AllocationStats.FILE_WRITE);
+    }
+
+    private long compressStart = 0;
+    private volatile long compressTime = 0;
+    private long rawBytes = 0;
+    private long compressedBytes = 0;
 
     @Override
-    public void beginFileWrite() {}
+    public void beginCompress() {
+        compressStart = System.nanoTime();
+    }
 
     @Override
-    public void endFileWrite() {}
+    public void endCompress(long rawBytes, long compressedBytes) {
+        compressTime += System.nanoTime() - compressStart;
+        this.rawBytes += rawBytes;
+        this.compressedBytes += compressedBytes;
+    }
 
     @Override
     public void beginProcessingDir() {}
@@ -59,8 +124,8 @@ public class ThreadStats implements Stats {
     public void endHtmlify() {}
 
     private long startTime = 0;
-    private long activeTime = 0;
-    private int numCalls;
+    private volatile long activeTime = 0;
+    private volatile int numCalls;
 
     @Override
     public void beginProcessingFile() {
@@ -73,9 +138,54 @@ public class ThreadStats implements Stats {
         ++numCalls;
     }
 
+    private long idleTailTime = 0;
+
+    @Override
+    public void recordIdleTail(long nanos) {
+        idleTailTime += nanos;
+    }
+
+    private int deadlinesExceeded = 0;
+
+    @Override
+    public void recordDeadlineExceeded() {
+        ++deadlinesExceeded;
+    }
+
+    public int getDeadlinesExceeded() {
+        return deadlinesExceeded;
+    }
+
+    // Time spent processing files, in ns
+    public long getActiveTime() {
+        return activeTime;
+    }
+
+    // Time spent reading and writing files, in ns (compression happens while writing, but isn't counted as io)
+    public long getIoTime() {
+        return fileReadTime + fileWriteTime - compressTime;
+    }
+
+    public int getFileCount() {
+        return numCalls;
+    }
+
     @Override
     public String getStats() {
-        return String.format("Active time: %f ms across %d calls", (double)activeTime * 1e-6, numCalls);
+        String s = String.format("Active time: %f ms across %d calls", (double)activeTime * 1e-6, numCalls);
+        if (bytesRead != 0)
+            s += String.format("\nFile read: %f ms, %d bytes (%.2f MB/s)",
+                    (double)fileReadTime * 1e-6, bytesRead, bytesRead / 1e6 / Math.max(fileReadTime * 1e-9, 1e-9));
+        if (rawBytes != 0)
+            s += String.format("\nCompression: %f ms, %d -> %d bytes (ratio %.3f)",
+                    (double)compressTime * 1e-6, rawBytes, compressedBytes, (double)compressedBytes / rawBytes);
+        if (idleTailTime != 0)
+            s += String.format("\nIdle tail: %f ms", (double)idleTailTime * 1e-6);
+        if (deadlinesExceeded != 0)
+            s += String.format("\nTimed out: %d files", deadlinesExceeded);
+        if (allocations != null)
+            s += "\n" + allocations.getStats();
+        return s;
     }
 
     @Override
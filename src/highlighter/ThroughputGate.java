@@ -0,0 +1,315 @@
+package highlighter;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Throughput regression gate: generates a synthetic corpus (see CorpusGenerator), measures Parser.parse,
+ * Parser.makeHtml and a whole Htmlify run over it, and compares the results with a baseline stored as json.
+ *
+ * Measured for each stage (the median of the iterations, after a warmup; parse and render are warmed up together and
+ * their iterations alternate, so neither one runs on a JIT warmed up by the other):
+ *
+ *    mbPerSec            source chars / 1e6 per second
+ *    filesPerSec         files per second
+ *    allocBytesPerChar   bytes allocated per source char (parse / render only; measured on the current thread)
+ *
+ * The gate fails (exit code 1) if any throughput falls more than the tolerance below the baseline, or allocation rises
+ * more than the tolerance above it. Baselines are only comparable on the same corpus and settings, so they record
+ * the generator settings, and the gate refuses to compare against a baseline for a different corpus (exit code 2).
+ * --update writes the current results as the new baseline instead.
+ *
+ * usage: ThroughputGate [--update] [--tolerance=<fraction>] [--files=<n>] [--iterations=<n>] [--threads=<n>]
+ *                       [<corpus options, see CorpusGenerator>] <baseline.json>
+ */
+public class ThroughputGate {
+    static final double DEFAULT_TOLERANCE = 0.1;
+    static final int WARMUP_PASSES = 3;     // over every source, for each of parse and render
+
+    private final CorpusGenerator generator;
+    private final int files;
+    private final int iterations;
+    private final int threads;
+    private final List<String> sources = new ArrayList<>();
+    private long chars = 0;
+    private final com.sun.management.ThreadMXBean threadBean;
+
+    ThroughputGate (CorpusGenerator generator, int files, int iterations, int threads) {
+        this.generator = generator;
+        this.files = files;
+        this.iterations = iterations;
+        this.threads = threads;
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        this.threadBean = bean instanceof com.sun.management.ThreadMXBean &&
+                ((com.sun.management.ThreadMXBean)bean).isThreadAllocatedMemorySupported() ?
+                (com.sun.management.ThreadMXBean)bean : null;
+        if (threadBean != null)
+            threadBean.setThreadAllocatedMemoryEnabled(true);
+        for (int i = 0; i < files; ++i) {
+            String source = generator.generate(i);
+            sources.add(source);
+            chars += source.length();
+        }
+    }
+
+    // Bytes allocated by the current thread so far, or -1 if that can't be measured
+    private long allocatedBytes () {
+        return threadBean != null ? threadBean.getThreadAllocatedBytes(Thread.currentThread().getId()) : -1;
+    }
+
+    private static double median (double[] values) {
+        double[] sorted = values.clone();
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+
+    // Runs parse or render over every source once
+    private void runStage (Parser parser, boolean render) {
+        for (String source : sources) {
+            if (render)
+                parser.makeHtml(source, null, false);
+            else
+                parser.parse(source);
+        }
+    }
+
+    // Runs parse and render over every source `iterations` times each (after warming up both, and alternating between
+    // them), and records their results under "parse" and "render"
+    private void measureStages (Map<String, Object> results) {
+        Stats stats = new FastStats();
+        Parser[] parsers = { new Parser(new StringMatcher(stats), stats), new Parser(new StringMatcher(stats), stats) };
+        for (int i = 0; i < WARMUP_PASSES; ++i) {
+            runStage(parsers[0], false);
+            runStage(parsers[1], true);
+        }
+        double[][] seconds = new double[2][iterations];
+        double[][] alloc = new double[2][iterations];
+        for (int i = 0; i < iterations; ++i) {
+            for (int stage = 0; stage < 2; ++stage) {
+                long allocStart = allocatedBytes();
+                long start = System.nanoTime();
+                runStage(parsers[stage], stage == 1);
+                seconds[stage][i] = (System.nanoTime() - start) * 1e-9;
+                alloc[stage][i] = (double)(allocatedBytes() - allocStart) / chars;
+            }
+        }
+        for (int stage = 0; stage < 2; ++stage) {
+            String name = stage == 1 ? "render" : "parse";
+            double time = median(seconds[stage]);
+            results.put(name + ".mbPerSec", chars / 1e6 / time);
+            results.put(name + ".filesPerSec", files / time);
+            if (threadBean != null)
+                results.put(name + ".allocBytesPerChar", median(alloc[stage]));
+        }
+    }
+
+    // Runs Htmlify over the corpus (written to a temporary directory), and records its results
+    private void measureHtmlify (Map<String, Object> results) throws IOException {
+        File corpusDir = createTempDir("corpus");
+        File outputDir = createTempDir("html");
+        PrintStream out = System.out;
+        try {
+            generator.writeCorpus(corpusDir, files);
+            String[] args = { "--threads=" + threads, corpusDir.getPath(), outputDir.getPath() };
+            double[] seconds = new double[iterations];
+            System.setOut(new PrintStream(new OutputStream() {
+                @Override
+                public void write (int b) {}
+                @Override
+                public void write (byte[] b, int off, int len) {}
+            }));
+            Htmlify.main(args);     // warmup
+            for (int i = 0; i < iterations; ++i) {
+                long start = System.nanoTime();
+                Htmlify.main(args);
+                seconds[i] = (System.nanoTime() - start) * 1e-9;
+            }
+            double time = median(seconds);
+            results.put("htmlify.mbPerSec", chars / 1e6 / time);
+            results.put("htmlify.filesPerSec", files / time);
+        } finally {
+            System.setOut(out);
+            deleteTree(corpusDir);
+            deleteTree(outputDir);
+        }
+    }
+
+    private static File createTempDir (String prefix) throws IOException {
+        return java.nio.file.Files.createTempDirectory("highlighter-" + prefix).toFile();
+    }
+
+    private static void deleteTree (File file) {
+        File[] children = file.listFiles();
+        if (children != null)
+            for (File child : children)
+                deleteTree(child);
+        file.delete();
+    }
+
+    public Map<String, Object> run () throws IOException {
+        Map<String, Object> results = new LinkedHashMap<>();
+        results.put("corpus", generator.describe());
+        results.put("files", files);
+        results.put("chars", chars);
+        results.put("iterations", iterations);
+        results.put("threads", threads);
+        measureStages(results);
+        measureHtmlify(results);
+        return results;
+    }
+
+    // Compares results with a baseline; prints each metric and returns the number of regressions
+    static int compare (Map<String, Object> results, Map<String, Object> baseline, double tolerance) {
+        int regressions = 0;
+        for (Map.Entry<String, Object> result : results.entrySet()) {
+            String key = result.getKey();
+            boolean throughput = key.endsWith("PerSec");
+            if (!throughput && !key.endsWith("PerChar"))
+                continue;
+            Object base = baseline.get(key);
+            double value = ((Number)result.getValue()).doubleValue();
+            if (!(base instanceof Number)) {
+                System.out.printf("%-24s %12.3f   (not in baseline)\n", key, value);
+                continue;
+            }
+            double expected = ((Number)base).doubleValue();
+            double change = expected != 0 ? value / expected - 1 : 0;
+            boolean regressed = throughput ? change < -tolerance : change > tolerance;
+            if (regressed)
+                ++regressions;
+            System.out.printf("%-24s %12.3f   baseline %12.3f   %+6.1f%%%s\n", key, value, expected, change * 100,
+                    regressed ? "   REGRESSION" : "");
+        }
+        return regressions;
+    }
+
+    // Writes a flat json object of strings and numbers
+    static void writeJson (Map<String, Object> values, File file) throws IOException {
+        try (Writer out = new FileWriter(file)) {
+            out.write("{\n");
+            int i = 0;
+            for (Map.Entry<String, Object> value : values.entrySet()) {
+                out.write("  \"" + value.getKey() + "\": ");
+                if (value.getValue() instanceof String)
+                    out.write("\"" + ((String)value.getValue()).replace("\\", "\\\\").replace("\"", "\\\"") + "\"");
+                else
+                    out.write(value.getValue().toString());
+                out.write(++i < values.size() ? ",\n" : "\n");
+            }
+            out.write("}\n");
+        }
+    }
+
+    // Reads a flat json object of strings and numbers (as written by writeJson)
+    static Map<String, Object> readJson (File file) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        try (Reader reader = new FileReader(file)) {
+            Htmlify.readFully(reader, sb);
+        }
+        Map<String, Object> values = new LinkedHashMap<>();
+        Matcher m = Pattern.compile("\"([^\"]*)\"\\s*:\\s*(?:\"((?:[^\"\\\\]|\\\\.)*)\"|([-+0-9.eE]+))").matcher(sb);
+        while (m.find()) {
+            if (m.group(2) != null)
+                values.put(m.group(1), m.group(2).replace("\\\"", "\"").replace("\\\\", "\\"));
+            else
+                values.put(m.group(1), Double.parseDouble(m.group(3)));
+        }
+        return values;
+    }
+
+    static final String USAGE = "usage: ThroughputGate [--update] [--tolerance=<fraction>] [--files=<n>] " +
+            "[--iterations=<n>] [--threads=<n>] [<corpus options, see CorpusGenerator>] <baseline.json>";
+
+    // Parses --tolerance=<fraction>: a finite, non-negative number (0.1 allows a 10% change)
+    static double parseTolerance (String arg) {
+        String value = arg.substring(arg.indexOf('=') + 1);
+        try {
+            double v = Double.parseDouble(value);
+            if (v >= 0 && !Double.isInfinite(v))   // (false for NaN)
+                return v;
+        } catch (NumberFormatException e) {}
+        System.err.printf("invalid value for '%s' (expected a non-negative fraction, eg. 0.1)\n", arg);
+        System.err.println(USAGE);
+        System.exit(2);
+        return 0;
+    }
+
+    public static void main (String[] args) {
+        CorpusGenerator generator = new CorpusGenerator();
+        boolean update = false;
+        double tolerance = DEFAULT_TOLERANCE;
+        int files = 200;
+        int iterations = 5;
+        int threads = 1;
+        String baselinePath = null;
+        for (String arg : args) {
+            if (arg.equals("--update")) {
+                update = true;
+            } else if (arg.startsWith("--tolerance=")) {
+                tolerance = parseTolerance(arg);
+            } else if (arg.startsWith("--files=")) {
+                files = Htmlify.parseIntOption(arg, 1, Integer.MAX_VALUE);
+            } else if (arg.startsWith("--iterations=")) {
+                iterations = Htmlify.parseIntOption(arg, 1, 1000);
+            } else if (arg.startsWith("--threads=")) {
+                threads = Htmlify.parseIntOption(arg, 1, 4096);
+            } else if (generator.parseOption(arg)) {
+                continue;
+            } else if (arg.startsWith("--") || baselinePath != null) {
+                System.err.println(USAGE);
+                System.exit(2);
+            } else {
+                baselinePath = arg;
+            }
+        }
+        if (baselinePath == null) {
+            System.err.println(USAGE);
+            System.exit(2);
+        }
+        File baselineFile = new File(baselinePath);
+
+        try {
+            Map<String, Object> baseline = null;
+            if (!update) {
+                if (!baselineFile.exists()) {
+                    System.err.printf("no baseline at '%s' (run with --update to create one)\n", baselinePath);
+                    System.exit(2);
+                }
+                baseline = readJson(baselineFile);
+                for (String key : new String[] { "corpus", "files", "threads" }) {
+                    Object expected = key.equals("corpus") ? generator.describe() :
+                            (double)(key.equals("files") ? files : threads);
+                    if (!expected.equals(baseline.get(key))) {
+                        System.err.printf("baseline '%s' was measured with %s=%s, not %s\n", baselinePath, key,
+                                baseline.get(key), expected);
+                        System.exit(2);
+                    }
+                }
+            }
+            Map<String, Object> results = new ThroughputGate(generator, files, iterations, threads).run();
+            if (update) {
+                writeJson(results, baselineFile);
+                compare(results, results, tolerance);
+                System.out.printf("wrote baseline to '%s'\n", baselinePath);
+                return;
+            }
+            int regressions = compare(results, baseline, tolerance);
+            if (regressions > 0) {
+                System.out.printf("FAILED: %d regressions beyond %.0f%% of the baseline\n", regressions,
+                        tolerance * 100);
+                System.exit(1);
+            }
+            System.out.println("PASSED");
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(2);
+        }
+    }
+}
@@ -6,6 +6,8 @@ import java.sql.Time;
  * Created by Seiji on 4/12/15.
  */
 public class TimedStats implements Stats {
+    public AllocationStats allocations = null;     // if set, allocated bytes are tracked per phase (see AllocationStats)
+
     private long parserInitTime = 0, parserInitStart = 0;
     private long trieInitTime = 0, trieInitStart   = 0;
 
@@ -14,9 +16,11 @@ public class TimedStats implements Stats {
     private long parseTime      = 0, parseStart = 0;
     private long fileReadTime   = 0, fileReadStart = 0;
     private long fileWriteTime  = 0, fileWriteStart = 0;
+    private long compressTime   = 0, compressStart = 0;
     private long fileProcessTime = 0, fileProcessStart = 0;
     private long dirProcessTime = 0, dirProcessStart  = 0;
     private long totalTime      = 0, totalStart = 0;
+    private long idleTailTime   = 0;
 
     private int parserInitCalls = 0;
     private int trieInitCalls   = 0;
@@ -25,9 +29,14 @@ public class TimedStats implements Stats {
     private int parseCalls  = 0;
     private int fileReadCalls   = 0;
     private int fileWriteCalls  = 0;
+    private int compressCalls   = 0;
+    private long fileReadBytes  = 0;
+    private long compressRawBytes = 0, compressedBytes = 0;
     private int fileProcessCalls = 0;
     private int dirProcessCalls = 0;
     private int htmlifyCalls  = 0;
+    private int idleTailCalls = 0;
+    private int deadlinesExceeded = 0;
 
     private int nanoCalls = 0;
 
@@ -55,40 +64,72 @@ public class TimedStats implements Stats {
         ++trieInitCalls;
     }
     public void beginTrieMatch () {
+        if (allocations != null)
+            allocations.begin(AllocationStats.TRIE_MATCH);
         trieMatchStart = curTime();
     }
     public void endTrieMatch () {
         trieMatchTime += deltaTime(trieMatchStart);
+        if (allocations != null)
+            allocations.end(AllocationStats.TRIE_MATCH);
         ++trieMatchCalls;
     }
     public void beginParse () {
+        if (allocations != null)
+            allocations.begin(AllocationStats.PARSE);
         parseStart = curTime();
     }
     public void endParse () {
         parseTime += deltaTime(parseStart);
+        if (allocations != null)
+            allocations.end(AllocationStats.PARSE);
         ++parseCalls;
     }
     public void beginHtmlGen () {
+        if (allocations != null)
+            allocations.begin(AllocationStats.HTML_GEN);
         htmlGenStart = curTime();
     }
     public void endHtmlGen () {
         htmlGenTime += deltaTime(htmlGenStart);
+        if (allocations != null)
+            allocations.end(AllocationStats.HTML_GEN);
         ++htmlGenCalls;
     }
     public void beginFileRead () {
+        if (allocations != null)
+            allocations.begin(AllocationStats.FILE_READ);
         fileReadStart = curTime();
     }
-    public void endFileRead () {
+    public void endFileRead (long bytes) {
         fileReadTime += deltaTime(fileReadStart);
+        if (allocations != null) {
+            allocations.end(AllocationStats.FILE_READ);
+            allocations.recordFile(bytes);
+        }
+        fileReadBytes += bytes;
         ++fileReadCalls;
     }
     public void beginFileWrite () {
+        if (allocations != null)
+            allocations.begin(AllocationStats.FILE_WRITE);
         fileWriteStart = curTime();
     }
     public void endFileWrite () {
         fileWriteTime += deltaTime(fileWriteStart);
+        if (allocations != null)
+            allocations.end(AllocationStats.FILE_WRITE);
         ++fileWriteCalls;
     }
+    public void beginCompress () {
+        compressStart = curTime();
+    }
+    public void endCompress (long rawBytes, long compressedBytes) {
+        compressTime += deltaTime(compressStart);
+        ++compressCalls;
+        compressRawBytes += rawBytes;
+        this.compressedBytes += compressedBytes;
+    }
     public void beginProcessingFile () {
         fileProcessStart = curTime();
     }
@@ -110,6 +151,13 @@ public class TimedStats implements Stats {
         totalTime += System.nanoTime() - totalStart;
         ++htmlifyCalls;
     }
+    public void recordIdleTail (long nanos) {
+        idleTailTime += nanos;
+        ++idleTailCalls;
+    }
+    public void recordDeadlineExceeded () {
+        ++deadlinesExceeded;
+    }
 
     public double toMs (long ns) {
         return (double)(ns) * 1e-6;
@@ -128,14 +176,27 @@ public class TimedStats implements Stats {
         sb.append("\n    dir process time:  ").append(toMs(dirProcessTime));
         sb.append("\n    file process time: ").append(toMs(fileProcessTime));
         sb.append("\n        file read time:  ").append(toMs(fileReadTime));
+        if (fileReadBytes != 0)
+            sb.append(String.format(" (%d bytes, %.2f MB/s)",
+                    fileReadBytes, fileReadBytes / 1e6 / Math.max(fileReadTime * 1e-9, 1e-9)));
         sb.append("\n        file write time: ").append(toMs(fileWriteTime));
+        sb.append("\n            compression: ").append(toMs(compressTime));
+        if (compressRawBytes != 0)
+            sb.append(String.format(" (%d -> %d bytes, ratio %.3f)",
+                    compressRawBytes, compressedBytes, (double)compressedBytes / compressRawBytes));
         sb.append("\n        html gen:        ").append(toMs(htmlGenTime));
         sb.append("\n        parser:          ").append(toMs(parseTime));
         sb.append("\n            trie match:  ").append(toMs(trieMatchTime));
         sb.append("\n            parsing:     ").append(toMs(parseTime - trieMatchTime));
         sb.append("\n        overhead: ").append(toMs(fileProcessTime - htmlGenTime - parseTime - fileReadTime - fileWriteTime));
         sb.append("\n    overhead: ").append(toMs(totalTime - dirProcessTime - fileProcessTime));
+        if (idleTailCalls != 0)
+            sb.append("\n    idle tail: ").append(toMs(idleTailTime)).append(" (").append(idleTailCalls).append(" workers)");
         sb.append("\ntotal: ").append(toMs(totalTime));
+        if (deadlinesExceeded != 0)
+            sb.append("\ntimed out: ").append(deadlinesExceeded).append(" files (written as plain text)");
+        if (allocations != null)
+            sb.append('\n').append(allocations.getStats());
         sb.append("\n\nSystem.nanoTime() calls: ").append(nanoCalls);
         sb.append(String.format("\nestimated profiling overhead:\n\t%d * 65ms / 1e6 calls = %f ms\n", nanoCalls, nanoCalls * 65.0f * 1e-6));
         return sb.toString();
@@ -161,12 +222,16 @@ public class TimedStats implements Stats {
         }
         for (int i = 0; i < fileReadCalls; ++i) {
             stats.beginFileRead();
-            stats.endFileRead();
+            stats.endFileRead(0);
         }
         for (int i = 0; i < fileWriteCalls; ++i) {
             stats.beginFileWrite();
             stats.endFileWrite();
         }
+        for (int i = 0; i < compressCalls; ++i) {
+            stats.beginCompress();
+            stats.endCompress(0, 0);
+        }
         for (int i = 0; i < htmlGenCalls; ++i) {
             stats.beginHtmlGen();
             stats.endHtmlGen();
@@ -224,6 +289,10 @@ public class TimedStats implements Stats {
         sb.append("\n            measured: ").append(toMs(fileWriteTime));
         sb.append("\n            overhead: ").append(toMs(overhead.fileWriteTime));
         sb.append("\n            est:      ").append(toMs(fileWriteTime - overhead.fileWriteTime));
+        sb.append("\n            compression:");
+        sb.append("\n                measured: ").append(toMs(compressTime));
+        sb.append("\n                overhead: ").append(toMs(overhead.compressTime));
+        sb.append("\n                est:      ").append(toMs(compressTime - overhead.compressTime));
         sb.append("\n        html generation:");
         sb.append("\n            measured: ").append(toMs(htmlGenTime));
         sb.append("\n            overhead: ").append(toMs(overhead.htmlGenTime));
@@ -252,10 +321,14 @@ public class TimedStats implements Stats {
         sb.append("\n        overhead: ").append(toMs(overhead.totalTime - overhead.dirProcessTime - overhead.fileProcessTime));
         sb.append("\n        est:      ").append(toMs(totalTime - dirProcessTime - fileProcessTime - overhead.totalTime +
                                                     overhead.dirProcessTime + overhead.fileProcessTime));
+        if (idleTailCalls != 0)
+            sb.append("\n    idle tail: ").append(toMs(idleTailTime)).append(" (").append(idleTailCalls).append(" workers)");
         sb.append("\ntotal: ").append(toMs(totalTime));
         sb.append("\n    measured: ").append(toMs(totalTime));
         sb.append("\n    overhead: ").append(toMs(overhead.totalTime));
         sb.append("\n    est:      ").append(toMs(totalTime - overhead.totalTime));
+        if (deadlinesExceeded != 0)
+            sb.append("\ntimed out: ").append(deadlinesExceeded).append(" files (written as plain text)");
 
         sb.append("\n\nSystem.nanoTime() calls: ").append(nanoCalls);
         sb.append(String.format("\nestimated profiling overhead:\n\t%d * 65ms / 1e6 calls = %f ms\n", nanoCalls, nanoCalls * 65.0f * 1e-6));
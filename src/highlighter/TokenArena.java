@@ -0,0 +1,108 @@
+package highlighter;
+
+import java.io.Closeable;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+/**
+ * Owns the off-heap (direct) memory used by TokenStores, and frees all of it when closed.
+ *
+ * Direct buffers are normally only freed once the GC gets around to collecting them, which for long-lived documents
+ * (eg. in a viewer service) can be a long time. Closing an arena releases its memory immediately (through the JDK's
+ * buffer cleaner, when available) and invalidates every TokenStore allocated from it, so a document's memory can be
+ * released deterministically when it's evicted:
+ *
+ *    try (TokenArena arena = new TokenArena()) {
+ *        TokenStore tokens = parser.parse(source, arena);
+ *        ...
+ *    }
+ *
+ * Not thread-safe; use one arena per thread (or per document).
+ */
+public class TokenArena implements Closeable {
+    private final Set<ByteBuffer> buffers = Collections.newSetFromMap(new IdentityHashMap<ByteBuffer, Boolean>());
+    private long allocatedBytes = 0;
+    private boolean closed = false;
+
+    // Allocates a direct buffer owned by this arena
+    ByteBuffer allocate (int bytes) {
+        checkOpen();
+        ByteBuffer buf = ByteBuffer.allocateDirect(bytes).order(ByteOrder.nativeOrder());
+        buffers.add(buf);
+        allocatedBytes += bytes;
+        return buf;
+    }
+
+    // Frees a buffer allocated from this arena before the arena is closed (eg. after growing it)
+    void free (ByteBuffer buf) {
+        if (buffers.remove(buf)) {
+            allocatedBytes -= buf.capacity();
+            Cleaner.clean(buf);
+        }
+    }
+
+    void checkOpen () {
+        if (closed)
+            throw new IllegalStateException("TokenArena is closed");
+    }
+
+    public boolean isClosed () {
+        return closed;
+    }
+
+    // Returns the number of off-heap bytes currently allocated from this arena
+    public long getAllocatedBytes () {
+        return allocatedBytes;
+    }
+
+    // Frees all memory allocated from this arena
+    @Override
+    public void close () {
+        if (closed)
+            return;
+        closed = true;
+        for (ByteBuffer buf : buffers)
+            Cleaner.clean(buf);
+        buffers.clear();
+        allocatedBytes = 0;
+    }
+
+    // Frees direct buffers immediately via sun.misc.Unsafe.invokeCleaner (java 9+, in the jdk.unsupported module).
+    // If that isn't available, buffers are left for the GC to free.
+    static class Cleaner {
+        private static final Object UNSAFE;
+        private static final Method INVOKE_CLEANER;
+
+        static {
+            Object unsafe = null;
+            Method invokeCleaner = null;
+            try {
+                Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+                Field field = unsafeClass.getDeclaredField("theUnsafe");
+                field.setAccessible(true);
+                unsafe = field.get(null);
+                invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            } catch (Exception e) {
+                unsafe = null;
+                invokeCleaner = null;
+            }
+            UNSAFE = unsafe;
+            INVOKE_CLEANER = invokeCleaner;
+        }
+
+        static void clean (ByteBuffer buf) {
+            if (INVOKE_CLEANER == null)
+                return;
+            try {
+                INVOKE_CLEANER.invoke(UNSAFE, buf);
+            } catch (Exception e) {
+                // leave it to the GC
+            }
+        }
+    }
+}
@@ -0,0 +1,263 @@
+package highlighter;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Persistent token streams (Htmlify --token-cache): the tokens parsed from a source are saved next to its output, so
+ * later runs with the same source and rules (eg. after a css or template change) only have to render them.
+ *
+ * A cache file holds the tokens of one source, keyed by the SHA-256 of the source chars and the parser's rules
+ * fingerprint (Parser.rulesFingerprint). Tokens are contiguous, so each one is stored as a single varint of its
+ * length (ie. the delta to the next token's offset) and type:
+ *
+ *    int MAGIC, int VERSION, long rules fingerprint, 32 byte source hash, int source length, int token count,
+ *    then one varint per token: length << TYPE_BITS | type ordinal (7 bits per byte, low bits first)
+ *
+ * load() reads the whole file in one go and returns a TokenCursor over it and the source, so no Token objects are
+ * created. A file for a different source, different rules or a different format is ignored (and replaced by the
+ * next save()), so a stale cache is never used.
+ *
+ * Thread-safe.
+ */
+public class TokenCache {
+    static final int MAGIC   = 0x484c544b;  // "HLTK"
+    static final int VERSION = 2;           // (bump when parse() changes how it splits tokens, or the format changes)
+    static final int HASH_LENGTH = 32;
+    static final int HEADER_LENGTH = 4 + 4 + 8 + HASH_LENGTH + 4 + 4;
+    static final String SUFFIX = ".tokens";
+    static final Parser.TokenType[] TYPES = Parser.TokenType.values();
+    static final int TYPE_BITS = 3;
+    static final int TYPE_MASK = (1 << TYPE_BITS) - 1;
+    static {
+        assert(TYPES.length <= 1 << TYPE_BITS);
+    }
+
+    private final long fingerprint;
+    private final ThreadLocal<MessageDigest> digests = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue () {
+            try {
+                return MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    };
+
+    // stats
+    private int hits = 0;
+    private int misses = 0;
+    private int saved = 0;
+    private long bytesRead = 0;
+    private long bytesWritten = 0;
+    private long loadNanos = 0;
+    private long saveNanos = 0;
+
+    public TokenCache (Parser parser) {
+        this.fingerprint = parser.rulesFingerprint() * MatcherSnapshot.FINGERPRINT_PRIME ^ VERSION;
+    }
+
+    // Returns the cache file for an output file
+    public static File cacheFile (File outputFile) {
+        return new File(outputFile.getPath() + SUFFIX);
+    }
+
+    // Returns the hash a source's tokens are keyed by
+    public byte[] hash (CharSequence source) {
+        MessageDigest digest = digests.get();
+        DedupIndex.update(digest, source);
+        return digest.digest();
+    }
+
+    // Tokens loaded from a cache file
+    public static class Tokens {
+        private final byte[] data;
+        private final String source;
+        private final int count;
+
+        Tokens (byte[] data, String source, int count) {
+            this.data = data;
+            this.source = source;
+            this.count = count;
+        }
+
+        public int size () {
+            return count;
+        }
+
+        public TokenCursor cursor () {
+            return new Cursor(data, source);
+        }
+    }
+
+    private static class Cursor implements TokenCursor {
+        private final byte[] data;
+        private final String source;
+        private int pos = HEADER_LENGTH;
+        private int offset = 0;
+        private int length = 0;
+        private Parser.TokenType type = null;
+
+        Cursor (byte[] data, String source) {
+            this.data = data;
+            this.source = source;
+        }
+
+        @Override
+        public boolean next () {
+            if (pos >= data.length)
+                return false;
+            long v = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = data[pos++];
+                v |= (long)(b & 0x7f) << shift;
+                shift += 7;
+            } while (b < 0);
+            offset += length;
+            length = (int)(v >>> TYPE_BITS);
+            type = TYPES[(int)v & TYPE_MASK];
+            return true;
+        }
+
+        @Override
+        public Parser.TokenType type () {
+            return type;
+        }
+
+        @Override
+        public int length () {
+            return length;
+        }
+
+        @Override
+        public char charAt (int i) {
+            return source.charAt(offset + i);
+        }
+
+        @Override
+        public boolean open () {
+            return false;
+        }
+    }
+
+    // Loads the tokens of a source from a cache file. Returns null if there's no cache file, or it's for a different
+    // source (hash is hash(source)), different rules, or it's corrupt.
+    public Tokens load (File file, byte[] hash, String source) {
+        long start = System.nanoTime();
+        Tokens tokens = null;
+        int size = 0;
+        if (file.isFile()) {
+            try {
+                byte[] data = Files.readAllBytes(file.toPath());
+                size = data.length;
+                tokens = decode(data, hash, source);
+            } catch (IOException e) {
+                tokens = null;
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        synchronized (this) {
+            if (tokens != null) {
+                ++hits;
+                bytesRead += size;
+            } else {
+                ++misses;
+            }
+            loadNanos += elapsed;
+        }
+        return tokens;
+    }
+
+    // Checks a cache file's header and token lengths against the source
+    private Tokens decode (byte[] data, byte[] hash, String source) {
+        if (data.length < HEADER_LENGTH)
+            return null;
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION || in.readLong() != fingerprint)
+                return null;
+            byte[] fileHash = new byte[HASH_LENGTH];
+            in.readFully(fileHash);
+            if (!Arrays.equals(fileHash, hash) || in.readInt() != source.length())
+                return null;
+            int count = in.readInt();
+            // check that the tokens cover the source exactly, so the cursor never reads past it
+            long total = 0;
+            int tokens = 0;
+            for (int pos = HEADER_LENGTH; pos < data.length; ++tokens) {
+                long v = 0;
+                int shift = 0;
+                byte b;
+                do {
+                    if (pos >= data.length || shift > 56)
+                        return null;
+                    b = data[pos++];
+                    v |= (long)(b & 0x7f) << shift;
+                    shift += 7;
+                } while (b < 0);
+                if ((v & TYPE_MASK) >= TYPES.length)
+                    return null;
+                total += v >>> TYPE_BITS;
+            }
+            return tokens == count && total == source.length() ? new Tokens(data, source, count) : null;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    // Saves the tokens parsed from a source (hash is hash(source)). The file is replaced atomically, so a concurrent
+    // load never sees a partially written file. Failures are reported but otherwise ignored.
+    public void save (File file, byte[] hash, String source, List<Parser.Token> tokens) {
+        long start = System.nanoTime();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(HEADER_LENGTH + tokens.size() * 2);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(fingerprint);
+            out.write(hash);
+            out.writeInt(source.length());
+            out.writeInt(tokens.size());
+            for (Parser.Token token : tokens) {
+                long v = (long)token.tok.length() << TYPE_BITS | token.type.ordinal();
+                while ((v & ~0x7fL) != 0) {
+                    out.write((int)(v & 0x7f) | 0x80);
+                    v >>>= 7;
+                }
+                out.write((int)v);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);     // (can't happen writing to memory)
+        }
+        File tmp = new File(file.getPath() + ".tmp");
+        try {
+            try (OutputStream out = new FileOutputStream(tmp)) {
+                bytes.writeTo(out);
+            }
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.err.printf("Error writing token cache '%s'\n", file);
+            e.printStackTrace();
+            tmp.delete();
+            return;
+        }
+        long elapsed = System.nanoTime() - start;
+        synchronized (this) {
+            ++saved;
+            bytesWritten += bytes.size();
+            saveNanos += elapsed;
+        }
+    }
+
+    public synchronized String getStats () {
+        return String.format("Token cache: %d hits (%d bytes, %.2f ms loading), %d misses, %d saved (%d bytes, " +
+                "%.2f ms)", hits, bytesRead, loadNanos * 1e-6, misses, saved, bytesWritten, saveNanos * 1e-6);
+    }
+}
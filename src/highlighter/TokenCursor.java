@@ -0,0 +1,70 @@
+package highlighter;
+
+import java.util.List;
+
+/**
+ * Forward-only iterator over a token stream, consumed by the renderers (see TokenRenderer).
+ *
+ * Usage:
+ *    while (cursor.next()) {
+ *        switch (cursor.type()) { ... }
+ *        for (int i = 0, n = cursor.length(); i < n; ++i)
+ *            emit(cursor.charAt(i));
+ *    }
+ *
+ * Implemented both for on-heap token lists (Parser.Token) and for off-heap token stores (TokenStore), so renderers
+ * don't need to know where the tokens live.
+ */
+public interface TokenCursor {
+    // Advances to the next token. Returns false if there are no more tokens.
+    boolean next ();
+
+    Parser.TokenType type ();
+    int length ();
+
+    // Returns the i-th char of the current token's text
+    char charAt (int i);
+
+    // Returns true if the current token is a partial token that continues in the next one (only streamed inputs are
+    // split into partial tokens, see StreamParser)
+    boolean open ();
+
+    // Iterates over a list of Parser.Tokens
+    class ListCursor implements TokenCursor {
+        private final List<Parser.Token> tokens;
+        private int index = -1;
+        private Parser.Token token = null;
+
+        public ListCursor (List<Parser.Token> tokens) {
+            this.tokens = tokens;
+        }
+
+        @Override
+        public boolean next () {
+            if (index + 1 >= tokens.size())
+                return false;
+            token = tokens.get(++index);
+            return true;
+        }
+
+        @Override
+        public Parser.TokenType type () {
+            return token.type;
+        }
+
+        @Override
+        public int length () {
+            return token.tok.length();
+        }
+
+        @Override
+        public char charAt (int i) {
+            return token.tok.charAt(i);
+        }
+
+        @Override
+        public boolean open () {
+            return token.open;
+        }
+    }
+}
@@ -0,0 +1,224 @@
+package highlighter;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Output format for a token stream. Parser.render(TokenCursor, TokenRenderer...) walks the tokens once and passes
+ * each one to every renderer, so one parse can produce several formats (Htmlify --formats). StreamParser.render does
+ * the same a window at a time, for inputs too large to hold in memory: tokens can then be split into partial tokens
+ * (see TokenCursor.open), and the renderers are flushed after each window.
+ *
+ * Implemented for html (the same output as Parser.makeHtml), ansi-coloured text for terminals, json token lists (eg.
+ * for search indexing), and paged html (PagedHtmlWriter).
+ */
+public interface TokenRenderer {
+    // Renders the current token of a cursor (called for each token, in order)
+    void token (TokenCursor token) throws IOException;
+
+    // Called after the last token
+    void finish () throws IOException;
+
+    // Writes out what's been rendered so far, if the renderer has an output of its own
+    void flush () throws IOException;
+
+    // Renders into a StringBuilder, which is either kept until the end (see getText) or, given an output, written
+    // out and cleared on each flush()
+    abstract class Buffered implements TokenRenderer {
+        final StringBuilder sb = new StringBuilder();
+        private final Writer out;
+
+        Buffered (Writer out) {
+            this.out = out;
+        }
+
+        @Override
+        public void flush () throws IOException {
+            if (out != null) {
+                out.append(sb);
+                sb.setLength(0);
+            }
+        }
+
+        // Returns the text rendered (since the last flush, if there's an output)
+        public String getText () {
+            return sb.toString();
+        }
+    }
+
+    // Html, as generated by Parser.makeHtml(String, String, boolean)
+    class Html extends Buffered {
+        private final boolean compact;
+        private Parser.TokenType current = Parser.TokenType.TEXT;   // (compact) type of the currently open span
+        private boolean continuing = false;     // (default) the current span continues a partial token
+
+        public Html (String cssLink, boolean compact) {
+            this(cssLink, compact, null);
+        }
+
+        public Html (String cssLink, boolean compact, Writer out) {
+            super(out);
+            this.compact = compact;
+            Parser.appendHeader(sb, cssLink);
+        }
+
+        @Override
+        public void token (TokenCursor token) {
+            if (!compact) {
+                if (!continuing)
+                    sb.append(Parser.spanTag(token.type()));
+                Parser.escape(token, sb);
+                continuing = token.open();
+                if (!continuing)
+                    sb.append("</span>");
+                return;
+            }
+            // plain text is left unwrapped, and runs of same-type tokens share a single span
+            Parser.TokenType type = token.type();
+            if (type != current) {
+                if (current != Parser.TokenType.TEXT)
+                    sb.append("</span>");
+                if (type != Parser.TokenType.TEXT)
+                    sb.append(Parser.spanTag(type));
+                current = type;
+            }
+            Parser.escape(token, sb);
+        }
+
+        @Override
+        public void finish () {
+            if (current != Parser.TokenType.TEXT)
+                sb.append("</span>");
+            sb.append(Parser.HTML_FOOTER);
+        }
+
+        public String getHtml () {
+            return getText();
+        }
+    }
+
+    // Text with ansi colour escapes (as used by less -R etc). Colours are reset at the end of each line, so each line
+    // can be displayed on its own; escape chars in the source are shown as ^[.
+    class Ansi extends Buffered {
+        static final String RESET = "\u001b[0m";
+
+        private Parser.TokenType current = Parser.TokenType.TEXT;
+
+        public Ansi () {
+            this(null);
+        }
+
+        public Ansi (Writer out) {
+            super(out);
+        }
+
+        static String color (Parser.TokenType type) {
+            switch (type) {
+                case KEYWORD:   return "\u001b[1;34m";
+                case LITERAL:   return "\u001b[1;36m";
+                case COMMENT:   return "\u001b[1;32m";
+                case DICTIONARY: return "\u001b[35m";
+                default:        return null;
+            }
+        }
+
+        @Override
+        public void token (TokenCursor token) {
+            Parser.TokenType type = token.type();
+            if (type != current) {
+                if (current != Parser.TokenType.TEXT)
+                    sb.append(RESET);
+                if (type != Parser.TokenType.TEXT)
+                    sb.append(color(type));
+                current = type;
+            }
+            String color = color(type);
+            for (int i = 0, n = token.length(); i < n; ++i) {
+                char c = token.charAt(i);
+                if (c == '\n' && color != null) {
+                    sb.append(RESET).append(c);
+                    if (i + 1 < n)
+                        sb.append(color);
+                    else
+                        current = Parser.TokenType.TEXT;
+                } else if (c == '\u001b') {
+                    sb.append("^[");
+                } else {
+                    sb.append(c);
+                }
+            }
+        }
+
+        @Override
+        public void finish () {
+            if (current != Parser.TokenType.TEXT)
+                sb.append(RESET);
+        }
+    }
+
+    // Json array of tokens, one per line: {"type": <css class, as in the html>, "offset": <char offset in the source>,
+    // "text": <token text>, "length": <chars>}. (The length comes last so that a token split into partial tokens can
+    // be written as it arrives.)
+    class Json extends Buffered {
+        private long offset = 0;
+        private long length = 0;        // chars of the current token written so far
+        private boolean first = true;
+        private boolean continuing = false;     // the current entry continues a partial token
+
+        public Json () {
+            this(null);
+        }
+
+        public Json (Writer out) {
+            super(out);
+            sb.append('[');
+        }
+
+        static String typeName (Parser.TokenType type) {
+            switch (type) {
+                case KEYWORD:   return "kwd";
+                case LITERAL:   return "lit";
+                case COMMENT:   return "com";
+                case DICTIONARY: return "dic";
+                default:        return "pln";
+            }
+        }
+
+        @Override
+        public void token (TokenCursor token) {
+            int n = token.length();
+            if (!continuing) {
+                sb.append(first ? "\n" : ",\n");
+                first = false;
+                sb.append("{\"type\":\"").append(typeName(token.type())).append("\",\"offset\":").append(offset)
+                        .append(",\"text\":\"");
+                length = 0;
+            }
+            for (int i = 0; i < n; ++i) {
+                char c = token.charAt(i);
+                switch (c) {
+                    case '"':   sb.append("\\\""); break;
+                    case '\\':  sb.append("\\\\"); break;
+                    case '\n':  sb.append("\\n"); break;
+                    case '\r':  sb.append("\\r"); break;
+                    case '\t':  sb.append("\\t"); break;
+                    default:
+                        if (c < 0x20)
+                            sb.append(String.format("\\u%04x", (int)c));
+                        else
+                            sb.append(c);
+                }
+            }
+            offset += n;
+            length += n;
+            continuing = token.open();
+            if (!continuing)
+                sb.append("\",\"length\":").append(length).append('}');
+        }
+
+        @Override
+        public void finish () {
+            sb.append("\n]\n");
+        }
+    }
+}
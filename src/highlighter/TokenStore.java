@@ -0,0 +1,192 @@
+package highlighter;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.IntBuffer;
+
+/**
+ * Off-heap token stream: a copy of the source text plus packed (offset, length, type) token records, all held in
+ * direct buffers allocated from a TokenArena. Unlike an ArrayList<Parser.Token>, this creates no per-token objects or
+ * substrings, so large (or many resident) parsed documents don't fill up the java heap.
+ *
+ * Each token is stored as two ints: its offset into the source, and (length << TYPE_BITS | type ordinal).
+ *
+ * Created by Parser.parse(String, TokenArena). Closing the store (or its arena) frees its memory; using it (or one of
+ * its cursors) after that throws IllegalStateException.
+ *
+ * A direct buffer holds at most MAX_BUFFER_BYTES, so a store holds sources of up to ~1G chars and up to ~268M tokens,
+ * each at most MAX_TOKEN_LENGTH (~512M) chars long; larger ones throw IllegalArgumentException / IllegalStateException
+ * rather than overflowing.
+ */
+public class TokenStore implements Closeable {
+    private static final int TYPE_BITS = 3;
+    private static final int TYPE_MASK = (1 << TYPE_BITS) - 1;
+    private static final Parser.TokenType[] TYPES = Parser.TokenType.values();
+    static final int MAX_BUFFER_BYTES = Integer.MAX_VALUE & ~7;
+    static final int MAX_TOKEN_LENGTH = -1 >>> TYPE_BITS;
+    static {
+        assert(TYPES.length <= 1 << TYPE_BITS);
+    }
+
+    private final TokenArena arena;
+    private ByteBuffer sourceBuffer;
+    private CharBuffer source;
+    private final int sourceLength;
+    private ByteBuffer recordBuffer;
+    private IntBuffer records;
+    private int count = 0;
+    private boolean closed = false;
+
+    // Creates a store holding a copy of the given source, with room for an initial number of tokens
+    TokenStore (TokenArena arena, String source, int initialCapacity) {
+        this.arena = arena;
+        this.sourceLength = source.length();
+        long sourceBytes = Math.max(source.length(), 1) * 2L;
+        if (sourceBytes > MAX_BUFFER_BYTES)
+            throw new IllegalArgumentException(String.format("source too large for a TokenStore (%d chars, max %d)",
+                    source.length(), MAX_BUFFER_BYTES / 2));
+        this.sourceBuffer = arena.allocate((int)sourceBytes);
+        this.source = sourceBuffer.asCharBuffer();
+        this.source.put(source);
+        this.recordBuffer = arena.allocate((int)Math.min(Math.max(initialCapacity, 16) * 8L, MAX_BUFFER_BYTES));
+        this.records = recordBuffer.asIntBuffer();
+    }
+
+    private void checkOpen () {
+        if (closed)
+            throw new IllegalStateException("TokenStore is closed");
+        arena.checkOpen();
+    }
+
+    // Appends a token covering source[offset, offset + length)
+    void add (int offset, int length, Parser.TokenType type) {
+        checkOpen();
+        if (length > MAX_TOKEN_LENGTH)
+            throw new IllegalStateException(String.format("token too long for a TokenStore (%d chars, max %d)",
+                    length, MAX_TOKEN_LENGTH));
+        if (count * 2 + 2 > records.capacity()) {
+            long needed = (count + 1) * 8L;
+            if (needed > MAX_BUFFER_BYTES)
+                throw new IllegalStateException(String.format("too many tokens for a TokenStore (max %d)",
+                        MAX_BUFFER_BYTES / 8));
+            ByteBuffer grown = arena.allocate((int)Math.min(recordBuffer.capacity() * 2L, MAX_BUFFER_BYTES));
+            IntBuffer grownRecords = grown.asIntBuffer();
+            records.position(0).limit(count * 2);
+            grownRecords.put(records);
+            arena.free(recordBuffer);
+            recordBuffer = grown;
+            records = grownRecords;
+            records.clear();
+        }
+        records.put(count * 2, offset);
+        records.put(count * 2 + 1, (length << TYPE_BITS) | type.ordinal());
+        ++count;
+    }
+
+    // Returns the number of tokens
+    public int size () {
+        return count;
+    }
+
+    public int sourceLength () {
+        return sourceLength;
+    }
+
+    public int offset (int token) {
+        checkOpen();
+        return records.get(token * 2);
+    }
+
+    public int length (int token) {
+        checkOpen();
+        return records.get(token * 2 + 1) >>> TYPE_BITS;
+    }
+
+    public Parser.TokenType type (int token) {
+        checkOpen();
+        return TYPES[records.get(token * 2 + 1) & TYPE_MASK];
+    }
+
+    // Returns the i-th char of the source
+    public char sourceAt (int i) {
+        checkOpen();
+        return source.get(i);
+    }
+
+    // Returns the text of a token (allocates a String; renderers should use cursor() instead)
+    public String text (int token) {
+        checkOpen();
+        int offset = offset(token);
+        char[] chars = new char[length(token)];
+        for (int i = 0; i < chars.length; ++i)
+            chars[i] = source.get(offset + i);
+        return new String(chars);
+    }
+
+    // Returns the number of off-heap bytes used by this store
+    public long getAllocatedBytes () {
+        return closed ? 0 : sourceBuffer.capacity() + recordBuffer.capacity();
+    }
+
+    // Returns a cursor over all tokens in this store
+    public TokenCursor cursor () {
+        checkOpen();
+        return new Cursor();
+    }
+
+    class Cursor implements TokenCursor {
+        private int token = -1;
+        private int offset;
+        private int packed;
+
+        @Override
+        public boolean next () {
+            checkOpen();
+            if (token + 1 >= count)
+                return false;
+            ++token;
+            offset = records.get(token * 2);
+            packed = records.get(token * 2 + 1);
+            return true;
+        }
+
+        @Override
+        public Parser.TokenType type () {
+            checkOpen();
+            return TYPES[packed & TYPE_MASK];
+        }
+
+        @Override
+        public int length () {
+            checkOpen();
+            return packed >>> TYPE_BITS;
+        }
+
+        @Override
+        public char charAt (int i) {
+            checkOpen();    // (the source buffer is freed when the store or arena is closed)
+            return source.get(offset + i);
+        }
+
+        @Override
+        public boolean open () {
+            return false;
+        }
+    }
+
+    // Frees this store's memory (the rest of its arena stays open)
+    @Override
+    public void close () {
+        if (closed)
+            return;
+        closed = true;
+        if (!arena.isClosed()) {
+            arena.free(sourceBuffer);
+            arena.free(recordBuffer);
+        }
+        sourceBuffer = recordBuffer = null;
+        source = null;
+        records = null;
+    }
+}
@@ -0,0 +1,162 @@
+package highlighter;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Adjusts the number of active worker threads in Htmlify's pool while it runs, to maximise files processed per second.
+ *
+ * Every SAMPLE_INTERVAL_MS it samples the workers' ThreadStats: files finished, and how their time split between io
+ * (reading / writing files) and cpu (parsing, html generation, compression). The worker count is then moved one step
+ * in the current direction, which reverses whenever the last step lowered throughput (hill climbing). The count never
+ * goes above cpuLimit / (1 - io fraction), since beyond that extra threads only compete for cpu, or above
+ * MAX_WORKERS_PER_CPU * cpuLimit.
+ *
+ * Every change is logged, and getSummary() reports the best count found, so that a run can be reproduced with a fixed
+ * count (Htmlify --threads=<n>).
+ */
+public class WorkerController extends Thread {
+    static final long SAMPLE_INTERVAL_MS = 250;
+    static final int MAX_WORKERS_PER_CPU = 4;
+    static final double MIN_CPU_FRACTION = 0.05;        // caps the io-based upper bound at 20x the cpu limit
+    static final double THROUGHPUT_TOLERANCE = 0.05;    // a step only counts as worse if throughput fell by more
+
+    private final Htmlify.ThreadPool pool;
+    private final int cpuLimit;
+    private final int maxWorkers;
+    private final int initialWorkers;
+    private volatile boolean running = true;
+
+    private int bestWorkers;
+    private double bestRate = 0;
+    private int changes = 0;
+
+    WorkerController (Htmlify.ThreadPool pool, int cpuLimit) {
+        this.pool = pool;
+        this.cpuLimit = cpuLimit;
+        this.maxWorkers = cpuLimit * MAX_WORKERS_PER_CPU;
+        this.initialWorkers = pool.getActiveCount();
+        this.bestWorkers = initialWorkers;
+        setDaemon(true);
+        setName("worker-controller");
+    }
+
+    public int getMaxWorkers () {
+        return maxWorkers;
+    }
+
+    // Returns the number of cpus this process may use: availableProcessors() (which already honours container limits
+    // on java 10+), further limited by the cgroup cpu quota if one is set (eg. docker --cpus=2.5 gives 3)
+    public static int cpuLimit () {
+        int cpus = Runtime.getRuntime().availableProcessors();
+        double quota = cgroupCpuQuota();
+        if (quota > 0)
+            cpus = Math.min(cpus, (int)Math.ceil(quota));
+        return Math.max(cpus, 1);
+    }
+
+    // Returns the cgroup cpu quota in cpus, or 0 if there isn't one (or it can't be read)
+    static double cgroupCpuQuota () {
+        // cgroup v2: "<quota> <period>", or "max <period>" if unlimited
+        String[] v2 = readFields("/sys/fs/cgroup/cpu.max");
+        if (v2 != null && v2.length == 2 && !v2[0].equals("max"))
+            return quotaRatio(v2[0], v2[1]);
+        // cgroup v1: quota is -1 if unlimited
+        String[] quota = readFields("/sys/fs/cgroup/cpu/cpu.cfs_quota_us");
+        String[] period = readFields("/sys/fs/cgroup/cpu/cpu.cfs_period_us");
+        if (quota != null && period != null && quota.length == 1 && period.length == 1)
+            return quotaRatio(quota[0], period[0]);
+        return 0;
+    }
+
+    private static double quotaRatio (String quota, String period) {
+        try {
+            double q = Double.parseDouble(quota);
+            double p = Double.parseDouble(period);
+            return q > 0 && p > 0 ? q / p : 0;
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static String[] readFields (String path) {
+        File file = new File(path);
+        if (!file.canRead())
+            return null;
+        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+            String line = reader.readLine();
+            return line != null ? line.trim().split("\\s+") : null;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    // Stops the controller (the pool keeps its current worker count)
+    public void stopController () {
+        running = false;
+        interrupt();
+    }
+
+    @Override
+    public void run () {
+        long lastTime = System.nanoTime();
+        long lastFiles = 0, lastActive = 0, lastIo = 0;
+        double lastRate = -1;
+        int direction = 1;
+        while (running) {
+            try {
+                Thread.sleep(SAMPLE_INTERVAL_MS);
+            } catch (InterruptedException e) {
+                break;
+            }
+            long files = 0, active = 0, io = 0;
+            for (ThreadStats stats : pool.getStats()) {
+                files += stats.getFileCount();
+                active += stats.getActiveTime();
+                io += stats.getIoTime();
+            }
+            long now = System.nanoTime();
+            long dFiles = files - lastFiles, dActive = active - lastActive, dIo = io - lastIo;
+            double seconds = (now - lastTime) * 1e-9;
+            lastTime = now;
+            lastFiles = files;
+            lastActive = active;
+            lastIo = io;
+            if (dFiles == 0 && dActive == 0)
+                continue;   // idle (waiting for tasks)
+
+            double rate = dFiles / seconds;
+            double ioFraction = dActive > 0 ? Math.min(Math.max((double)dIo / dActive, 0), 1) : 0;
+            int n = pool.getActiveCount();
+            if (rate > bestRate) {
+                bestRate = rate;
+                bestWorkers = n;
+            }
+            if (lastRate >= 0 && rate < lastRate * (1 - THROUGHPUT_TOLERANCE))
+                direction = -direction;
+            lastRate = rate;
+
+            int upper = (int)Math.ceil(cpuLimit / Math.max(1 - ioFraction, MIN_CPU_FRACTION));
+            upper = Math.max(1, Math.min(upper, maxWorkers));
+            int step = Math.max(1, n / 4);
+            int target = Math.max(1, Math.min(n + direction * step, upper));
+            if (target == n) {
+                direction = -direction;     // at a bound: probe the other way next time
+                continue;
+            }
+            pool.setActiveCount(target);
+            ++changes;
+            System.out.printf("Workers: %d -> %d (%.1f files/s, %.0f%% io)\n", n, target, rate, ioFraction * 100);
+        }
+    }
+
+    public String getSummary () {
+        return String.format("Adaptive workers: started with %d, finished with %d after %d changes (cpu limit %d, " +
+                        "max %d); best %d (%.1f files/s), rerun with --threads=%d to reproduce",
+                initialWorkers, pool.getActiveCount(), changes, cpuLimit, maxWorkers, bestWorkers, bestRate,
+                bestWorkers);
+    }
+}